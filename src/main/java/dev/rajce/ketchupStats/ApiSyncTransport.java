@@ -0,0 +1,77 @@
+package dev.rajce.ketchupStats;
+
+import dev.rajce.ketchupStats.api.StatChange;
+import dev.rajce.ketchupStats.api.StatTransport;
+import dev.rajce.ketchupStats.managers.DatabaseManager;
+import dev.rajce.ketchupStats.storage.SyncChange;
+import dev.rajce.ketchupStats.storage.SyncTransport;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a {@link StatTransport} of another plugin as the DatabaseManager's {@link SyncTransport},
+ * translating stat ids to names and back.
+ */
+final class ApiSyncTransport implements SyncTransport {
+
+    private final StatTransport transport;
+    private final DatabaseManager databaseManager;
+
+    ApiSyncTransport(StatTransport transport, DatabaseManager databaseManager) {
+        this.transport = transport;
+        this.databaseManager = databaseManager;
+    }
+
+    @Override
+    public void publish(Connection conn, List<SyncChange> changes) throws SQLException {
+        transport.publish(conn, toApi(changes));
+    }
+
+    @Override
+    public void committed(List<SyncChange> changes) {
+        transport.committed(toApi(changes));
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        transport.start(new StatTransport.Receiver() {
+            @Override
+            public void receive(List<StatChange> changes, long visibleAfter, long visibleBefore) {
+                receiver.receive(fromApi(changes), visibleAfter, visibleBefore);
+            }
+
+            @Override
+            public void resync() {
+                receiver.resync();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    private List<StatChange> toApi(List<SyncChange> changes) {
+        List<StatChange> converted = new ArrayList<>(changes.size());
+        for (SyncChange change : changes) {
+            String statName = databaseManager.getStatName(change.statId());
+            if (statName == null) continue;
+            converted.add(new StatChange(change.uuid(), statName, change.absolute(), change.value()));
+        }
+        return converted;
+    }
+
+    private List<SyncChange> fromApi(List<StatChange> changes) {
+        List<SyncChange> converted = new ArrayList<>(changes.size());
+        for (StatChange change : changes) {
+            int statId = databaseManager.getStatId(change.statName());
+            if (statId < 0) continue;
+            converted.add(new SyncChange(change.uuid(), statId, change.absolute(), change.value()));
+        }
+        return converted;
+    }
+}
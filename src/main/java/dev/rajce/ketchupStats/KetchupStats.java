@@ -1,11 +1,14 @@
 package dev.rajce.ketchupStats;
 
+import dev.rajce.ketchupStats.api.KetchupStatsApi;
 import dev.rajce.ketchupStats.commands.StatsCommand;
 import dev.rajce.ketchupStats.listeners.PlayerJoinListener;
 import dev.rajce.ketchupStats.listeners.PlayerLeaveListener;
+import dev.rajce.ketchupStats.listeners.PlayerPreLoginListener;
 import dev.rajce.ketchupStats.managers.DatabaseManager;
 import dev.rajce.ketchupStats.managers.MessageManager;
 import dev.rajce.ketchupStats.tabcompleters.StatsCompleter;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public final class KetchupStats extends JavaPlugin {
@@ -20,8 +23,14 @@ public final class KetchupStats extends JavaPlugin {
         databaseManager = new DatabaseManager(this,"stats.db");
         saveDefaultConfig();
 
+        getServer().getServicesManager().register(KetchupStatsApi.class, new KetchupStatsApiImpl(this), this, ServicePriority.Normal);
+
         if (getServer().getPluginManager().getPlugin("PlaceholderAPI") != null) {
-            new PlaceholderAPIHook(this).register();
+            PlaceholderAPIHook placeholderAPIHook = new PlaceholderAPIHook(this);
+            placeholderAPIHook.register();
+
+            long refreshTicks = Math.max(1, getConfig().getLong("placeholders.refresh-ticks", 20));
+            getServer().getScheduler().runTaskTimerAsynchronously(this, placeholderAPIHook::refreshSnapshot, 20L, refreshTicks);
             getLogger().info("PlaceholderAPI hook registered.");
         }
 
@@ -31,16 +40,19 @@ public final class KetchupStats extends JavaPlugin {
         getServer().getPluginManager().registerEvents(new PlayerLeaveListener(this),this);
         getServer().getPluginManager().registerEvents(new PlayerJoinListener(this),this);
 
+        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> databaseManager.expireWarmPlayers(), 1200L, 1200L);
+        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> databaseManager.logSaveSummary(), 1200L, 1200L);
+        long leaderboardTicks = Math.max(1L, getConfig().getLong("leaderboards.update-ticks", 20L));
+        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> databaseManager.updateLeaderboards(), leaderboardTicks, leaderboardTicks);
+        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> databaseManager.prunePeriods(), 6000L, 72000L);
 
+        if (getConfig().getBoolean("prefetch.enabled", false)) {
+            getServer().getPluginManager().registerEvents(new PlayerPreLoginListener(this), this);
 
-        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> {
-
-                    if (databaseManager != null) {
-                        databaseManager.saveDirtyStats();
-                    }
-
-                }, 20L * 60 * 5, 20L * 60 * 5);
+            long ttlMillis = getConfig().getLong("prefetch.ttl-seconds", 60) * 1000L;
+            getServer().getScheduler().runTaskTimerAsynchronously(this, () -> databaseManager.expirePrefetches(ttlMillis), 1200L, 1200L);
         }
+    }
 
     @Override
     public void onDisable() {
@@ -48,7 +60,6 @@ public final class KetchupStats extends JavaPlugin {
         getServer().getScheduler().cancelTasks(this);
 
         if (databaseManager != null) {
-            databaseManager.saveDirtyStats();
             databaseManager.close();
         }
     }
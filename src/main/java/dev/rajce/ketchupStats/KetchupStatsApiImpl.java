@@ -0,0 +1,127 @@
+package dev.rajce.ketchupStats;
+
+import dev.rajce.ketchupStats.api.KetchupStatsApi;
+import dev.rajce.ketchupStats.api.LeaderboardEntry;
+import dev.rajce.ketchupStats.api.StatTransport;
+import dev.rajce.ketchupStats.managers.DatabaseManager;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link KetchupStatsApi} on top of the DatabaseManager. Anything that may wait for the database runs on its
+ * executor; writes that only need the player loaded complete through the player's load future instead.
+ */
+final class KetchupStatsApiImpl implements KetchupStatsApi {
+
+    private final DatabaseManager databaseManager;
+
+    KetchupStatsApiImpl(KetchupStats plugin) {
+        this.databaseManager = plugin.getDatabaseManager();
+    }
+
+    @Override
+    public boolean isStatRegistered(String statName) {
+        return databaseManager.isStatRegistered(statName);
+    }
+
+    @Override
+    public List<String> getStatNames() {
+        return databaseManager.getAllStatNames();
+    }
+
+    @Override
+    public boolean isLoaded(UUID uuid) {
+        return databaseManager.isLoaded(uuid);
+    }
+
+    @Override
+    public OptionalDouble getCachedStat(String statName, UUID uuid) {
+        return databaseManager.isLoaded(uuid) ? OptionalDouble.of(databaseManager.getStat(statName, uuid)) : OptionalDouble.empty();
+    }
+
+    @Override
+    public List<LeaderboardEntry> getTop(String statName, int limit) {
+        List<dev.rajce.ketchupStats.storage.LeaderboardEntry> top = databaseManager.getTop(statName, limit);
+        List<LeaderboardEntry> entries = new ArrayList<>(top.size());
+        for (dev.rajce.ketchupStats.storage.LeaderboardEntry entry : top) {
+            entries.add(new LeaderboardEntry(entry.uuid(), entry.value()));
+        }
+        return entries;
+    }
+
+    @Override
+    public int getRank(String statName, UUID uuid) {
+        return databaseManager.getRank(statName, uuid);
+    }
+
+    @Override
+    public CompletableFuture<Double> getStat(String statName, UUID uuid) {
+        if (databaseManager.isLoaded(uuid)) {
+            return CompletableFuture.completedFuture(databaseManager.getStat(statName, uuid));
+        }
+        return databaseManager.supplyAsync("api getStat", () -> databaseManager.getStatAsync(statName, uuid));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Double>> getStats(UUID uuid) {
+        return databaseManager.supplyAsync("api getStats", () -> databaseManager.getAllStats(uuid));
+    }
+
+    @Override
+    public CompletableFuture<Void> setStat(String statName, UUID uuid, double value) {
+        return setStats(Map.of(uuid, Map.of(statName, value)));
+    }
+
+    @Override
+    public CompletableFuture<Double> addStat(String statName, UUID uuid, double amount) {
+        return databaseManager.supplyAsync("api addStat",
+                () -> Math.max(0, databaseManager.getAndAdd(statName, uuid, amount) + amount));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSet(String statName, UUID uuid, double expected, double value) {
+        return databaseManager.supplyAsync("api compareAndSet", () -> databaseManager.compareAndSet(statName, uuid, expected, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> setStats(Map<UUID, Map<String, Double>> values) {
+        return applyAll(values, (uuid, statName, value) -> databaseManager.setStat(statName, uuid, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> addStats(Map<UUID, Map<String, Double>> amounts) {
+        return applyAll(amounts, (uuid, statName, amount) -> databaseManager.addStat(statName, uuid, amount));
+    }
+
+    @Override
+    public void setSyncTransport(StatTransport transport) {
+        databaseManager.setSyncTransport(new ApiSyncTransport(transport, databaseManager));
+    }
+
+    /**
+     * Hands every change to the DatabaseManager, which never blocks on them: changes for players that aren't
+     * loaded are buffered, and their loads are coalesced into batch queries. Completes when every player is loaded,
+     * which is when their buffered changes have been applied.
+     */
+    private CompletableFuture<Void> applyAll(Map<UUID, Map<String, Double>> changes, StatWrite write) {
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+
+        changes.forEach((uuid, stats) -> {
+            boolean any = false;
+            for (Map.Entry<String, Double> stat : stats.entrySet()) {
+                if (!databaseManager.isStatRegistered(stat.getKey())) continue;
+
+                write.apply(uuid, stat.getKey(), stat.getValue());
+                any = true;
+            }
+            if (any) loads.add(databaseManager.loadPlayerStatsAsync(uuid));
+        });
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @FunctionalInterface
+    private interface StatWrite {
+        void apply(UUID uuid, String statName, double value);
+    }
+}
@@ -0,0 +1,89 @@
+package dev.rajce.ketchupStats;
+
+import dev.rajce.ketchupStats.managers.DatabaseManager;
+import dev.rajce.ketchupStats.storage.LeaderboardEntry;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Immutable copy of the top of every leaderboard plus the ranks of online players, with all strings prebuilt.
+ * PlaceholderAPIHook reads it through a volatile field, so answering a placeholder is a map lookup and an array index.
+ */
+final class LeaderboardSnapshot {
+
+    static final LeaderboardSnapshot EMPTY = new LeaderboardSnapshot(Collections.emptyMap());
+
+    private final Map<String, Board> boards;
+
+    private LeaderboardSnapshot(Map<String, Board> boards) {
+        this.boards = boards;
+    }
+
+    /**
+     * Builds a new snapshot. Must be called ASYNCHRONOUSLY, it looks up player names.
+     */
+    static LeaderboardSnapshot build(DatabaseManager databaseManager, int topSize, Function<String, StatFormatter> formatters) {
+        Collection<? extends Player> online = Bukkit.getOnlinePlayers();
+        Map<UUID, String> names = new HashMap<>();
+        Map<String, Board> boards = new HashMap<>();
+
+        for (String statName : databaseManager.getAllStatNames()) {
+            List<LeaderboardEntry> top = databaseManager.getTop(statName, topSize);
+            StatFormatter formatter = formatters.apply(statName);
+            String[] topNames = new String[top.size()];
+            String[] topValues = new String[top.size()];
+
+            for (int i = 0; i < top.size(); i++) {
+                LeaderboardEntry entry = top.get(i);
+                topNames[i] = names.computeIfAbsent(entry.uuid(), LeaderboardSnapshot::nameOf);
+                topValues[i] = formatter.format(entry.value());
+            }
+
+            Map<UUID, String> ranks = new HashMap<>();
+            for (Player player : online) {
+                int rank = databaseManager.getRank(statName, player.getUniqueId());
+                if (rank > 0) ranks.put(player.getUniqueId(), StatFormatter.integer(rank));
+            }
+
+            boards.put(statName, new Board(topNames, topValues, ranks));
+        }
+        return new LeaderboardSnapshot(boards);
+    }
+
+    /**
+     * Name of the player at 1-based {@code position}, or null if the position is empty.
+     */
+    String name(String statName, int position) {
+        Board board = boards.get(statName);
+        return board != null && position >= 1 && position <= board.names.length ? board.names[position - 1] : null;
+    }
+
+    /**
+     * Value of the player at 1-based {@code position}, or null if the position is empty.
+     */
+    String value(String statName, int position) {
+        Board board = boards.get(statName);
+        return board != null && position >= 1 && position <= board.values.length ? board.values[position - 1] : null;
+    }
+
+    /**
+     * Rank of an online player as of the last rebuild, or null if they weren't ranked or online then.
+     */
+    String rank(String statName, UUID uuid) {
+        Board board = boards.get(statName);
+        return board != null ? board.ranks.get(uuid) : null;
+    }
+
+    private static String nameOf(UUID uuid) {
+        OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
+        String name = player.getName();
+        return name != null ? name : uuid.toString();
+    }
+
+    private record Board(String[] names, String[] values, Map<UUID, String> ranks) {
+    }
+}
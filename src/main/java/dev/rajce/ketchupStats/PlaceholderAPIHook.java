@@ -1,17 +1,37 @@
 package dev.rajce.ketchupStats;
 
 import dev.rajce.ketchupStats.managers.DatabaseManager;
+import dev.rajce.ketchupStats.storage.StatWindow;
 import me.clip.placeholderapi.expansion.PlaceholderExpansion;
 import org.bukkit.OfflinePlayer;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class PlaceholderAPIHook extends PlaceholderExpansion {
     private final DatabaseManager databaseManager;
+    private final KetchupStats plugin;
+
+    // Caps the parse cache, so odd params from other plugins can't grow it forever
+    private static final int MAX_CACHED_PLACEHOLDERS = 4096;
 
+    private final Map<String, Placeholder> placeholders = new ConcurrentHashMap<>();
+    private volatile LeaderboardSnapshot snapshot = LeaderboardSnapshot.EMPTY;
 
     public PlaceholderAPIHook(KetchupStats plugin) {
+        this.plugin = plugin;
         this.databaseManager = plugin.getDatabaseManager();
     }
 
+    /**
+     * Rebuilds the leaderboard snapshot used by the top and rank placeholders.
+     * Must be called ASYNCHRONOUSLY, from a repeating task.
+     */
+    public void refreshSnapshot() {
+        snapshot = LeaderboardSnapshot.build(databaseManager, plugin.getConfig().getInt("placeholders.top-size", 10),
+                statName -> StatFormatter.fromConfig(plugin.getConfig(), statName));
+    }
+
     @Override
     public String getIdentifier() {
         return "ketchupstats";
@@ -32,12 +52,102 @@ public class PlaceholderAPIHook extends PlaceholderExpansion {
         return true;
     }
 
+    /**
+     * %ketchupstats_<stat>%, %ketchupstats_top_<stat>_<position>_name%, %ketchupstats_top_<stat>_<position>_value%
+     * and %ketchupstats_rank_<stat>%.
+     */
     @Override
     public String onRequest(OfflinePlayer offlinePlayer, String params) {
-        if(databaseManager.isStatRegistered(params)){
-            return String.valueOf(databaseManager.getStat(params,offlinePlayer.getUniqueId()));
+        Placeholder placeholder = resolve(params);
+
+        String result = switch (placeholder.type()) {
+            case STAT -> offlinePlayer == null ? null
+                    : placeholder.formatter().format(databaseManager.getStat(placeholder.statId(), offlinePlayer.getUniqueId()));
+            case TOP_NAME -> snapshot.name(placeholder.statName(), placeholder.position());
+            case TOP_VALUE -> snapshot.value(placeholder.statName(), placeholder.position());
+            case RANK -> offlinePlayer == null ? null : rank(placeholder, offlinePlayer);
+            case PERIOD -> offlinePlayer == null ? null : placeholder.formatter().format(
+                    databaseManager.getPeriodStat(placeholder.statName(), offlinePlayer.getUniqueId(), placeholder.window()));
+            case UNKNOWN -> null;
+        };
+        return result != null ? result : " ";
+    }
+
+    /**
+     * Parses the params once and caches the result until stats are created, deleted or reloaded.
+     */
+    private Placeholder resolve(String params) {
+        int version = databaseManager.getDefinitionsVersion();
+        Placeholder placeholder = placeholders.get(params);
+        if (placeholder != null && placeholder.version() == version) return placeholder;
+
+        placeholder = parse(params, version);
+        if (placeholders.size() < MAX_CACHED_PLACEHOLDERS || placeholders.containsKey(params)) {
+            placeholders.put(params, placeholder);
+        }
+        return placeholder;
+    }
+
+    private Placeholder parse(String params, int version) {
+        if (databaseManager.isStatRegistered(params)) {
+            return placeholder(PlaceholderType.STAT, params, 0, version);
+        }
+
+        if (params.startsWith("top_")) {
+            boolean name = params.endsWith("_name");
+            if (name || params.endsWith("_value")) {
+                String statAndPosition = params.substring(4, params.length() - (name ? 5 : 6));
+                int separator = statAndPosition.lastIndexOf('_');
+
+                if (separator > 0) {
+                    try {
+                        int position = Integer.parseInt(statAndPosition.substring(separator + 1));
+                        String statName = statAndPosition.substring(0, separator);
+                        if (databaseManager.isStatRegistered(statName)) {
+                            return placeholder(name ? PlaceholderType.TOP_NAME : PlaceholderType.TOP_VALUE, statName, position, version);
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+
+        if (params.startsWith("rank_") && databaseManager.isStatRegistered(params.substring(5))) {
+            return placeholder(PlaceholderType.RANK, params.substring(5), 0, version);
         }
-        return " ";
+
+        // <stat>_daily, <stat>_weekly, <stat>_monthly
+        int separator = params.lastIndexOf('_');
+        if (separator > 0) {
+            String statName = params.substring(0, separator);
+            StatWindow window = StatWindow.fromName(params.substring(separator + 1));
+            if (window != null && databaseManager.getStatWindows(statName).contains(window)) {
+                return new Placeholder(PlaceholderType.PERIOD, statName, databaseManager.getStatId(statName), 0,
+                        window, StatFormatter.fromConfig(plugin.getConfig(), statName), version);
+            }
+        }
+        return new Placeholder(PlaceholderType.UNKNOWN, null, -1, 0, null, null, version);
+    }
+
+    private Placeholder placeholder(PlaceholderType type, String statName, int position, int version) {
+        return new Placeholder(type, statName, databaseManager.getStatId(statName), position,
+                null, StatFormatter.fromConfig(plugin.getConfig(), statName), version);
     }
 
-}
\ No newline at end of file
+    private String rank(Placeholder placeholder, OfflinePlayer offlinePlayer) {
+        String rank = snapshot.rank(placeholder.statName(), offlinePlayer.getUniqueId());
+        if (rank != null) return rank;
+
+        // Not online at the last rebuild, ask the live leaderboard instead
+        int live = databaseManager.getRank(placeholder.statName(), offlinePlayer.getUniqueId());
+        return live > 0 ? StatFormatter.integer(live) : null;
+    }
+
+    private enum PlaceholderType {
+        STAT, TOP_NAME, TOP_VALUE, RANK, PERIOD, UNKNOWN
+    }
+
+    private record Placeholder(PlaceholderType type, String statName, int statId, int position,
+                               StatWindow window, StatFormatter formatter, int version) {
+    }
+}
@@ -0,0 +1,130 @@
+package dev.rajce.ketchupStats;
+
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.Locale;
+
+/**
+ * Turns stat values into placeholder text. Instances are immutable and shared between threads.
+ * Whole numbers below {@link #CACHED_INTEGERS} are served from a prebuilt string table, so the
+ * common case of a small counter doesn't allocate at all.
+ */
+final class StatFormatter {
+
+    private static final int CACHED_INTEGERS = 10_000;
+    private static final String[] INTEGER_STRINGS = new String[CACHED_INTEGERS];
+
+    static {
+        for (int i = 0; i < CACHED_INTEGERS; i++) {
+            INTEGER_STRINGS[i] = Integer.toString(i).intern();
+        }
+    }
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    private static final String[] COMPACT_SUFFIXES = {"", "k", "M", "B", "T"};
+
+    enum Style {
+        /** Whole numbers without ".0", fractions with up to the configured decimals. */
+        NUMBER,
+        /** Rounded to a whole number. */
+        INTEGER,
+        /** Always exactly the configured decimals. */
+        DECIMAL,
+        /** 1.2k, 3.4M, ... */
+        COMPACT,
+        /** The value as seconds: 1d 2h, 3h 4m, 5m 6s. */
+        TIME
+    }
+
+    private final Style style;
+    private final int decimals;
+
+    StatFormatter(Style style, int decimals) {
+        this.style = style;
+        this.decimals = Math.max(0, Math.min(decimals, POWERS_OF_TEN.length - 1));
+    }
+
+    /**
+     * Reads placeholders.formats.<stat>, falling back to placeholders.format.
+     */
+    static StatFormatter fromConfig(FileConfiguration config, String statName) {
+        String style = config.getString("placeholders.formats." + statName,
+                config.getString("placeholders.format", "number"));
+        int decimals = config.getInt("placeholders.decimals", 2);
+
+        try {
+            return new StatFormatter(Style.valueOf(style.toUpperCase(Locale.ROOT)), decimals);
+        } catch (IllegalArgumentException e) {
+            return new StatFormatter(Style.NUMBER, decimals);
+        }
+    }
+
+    String format(double value) {
+        return switch (style) {
+            case NUMBER -> fixed(value, decimals, true);
+            case INTEGER -> integer(Math.round(value));
+            case DECIMAL -> fixed(value, decimals, false);
+            case COMPACT -> compact(value);
+            case TIME -> time(Math.round(value));
+        };
+    }
+
+    /**
+     * The number as text, from the string table when it's small enough, so ranks share it too.
+     */
+    static String integer(long value) {
+        return value >= 0 && value < CACHED_INTEGERS ? INTEGER_STRINGS[(int) value] : Long.toString(value);
+    }
+
+    private static String fixed(double value, int decimals, boolean trimZeros) {
+        long whole = (long) value;
+        if (whole == value && (trimZeros || decimals == 0)) return integer(whole);
+
+        long scale = POWERS_OF_TEN[decimals];
+        if (Math.abs(value) >= (double) Long.MAX_VALUE / scale || Double.isNaN(value)) return String.valueOf(value);
+
+        long scaled = Math.round(value * scale);
+        long fraction = Math.abs(scaled % scale);
+        int digits = decimals;
+        if (trimZeros) {
+            while (digits > 0 && fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+        }
+
+        long integerPart = scaled / scale;
+        if (digits == 0) return integer(integerPart);
+
+        StringBuilder builder = new StringBuilder(24);
+        if (scaled < 0 && integerPart == 0) builder.append('-');
+        builder.append(integerPart).append('.');
+        String fractionDigits = Long.toString(fraction);
+        for (int i = fractionDigits.length(); i < digits; i++) builder.append('0');
+        return builder.append(fractionDigits).toString();
+    }
+
+    private static String compact(double value) {
+        if (Math.abs(value) < 1000) return fixed(value, 1, true);
+
+        int suffix = 0;
+        double scaled = value;
+        while (Math.abs(scaled) >= 1000 && suffix < COMPACT_SUFFIXES.length - 1) {
+            scaled /= 1000;
+            suffix++;
+        }
+        return fixed(scaled, 1, true) + COMPACT_SUFFIXES[suffix];
+    }
+
+    private static String time(long seconds) {
+        if (seconds < 60) return integer(Math.max(0, seconds)) + "s";
+
+        long days = seconds / 86_400;
+        long hours = seconds % 86_400 / 3_600;
+        long minutes = seconds % 3_600 / 60;
+
+        if (days > 0) return days + "d " + hours + "h";
+        if (hours > 0) return hours + "h " + minutes + "m";
+        return minutes + "m " + seconds % 60 + "s";
+    }
+}
@@ -0,0 +1,86 @@
+package dev.rajce.ketchupStats.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Public API for other plugins, registered with Bukkit's ServicesManager:
+ * <pre>{@code
+ * KetchupStatsApi api = Bukkit.getServicesManager().load(KetchupStatsApi.class);
+ * }</pre>
+ * Methods returning a value directly only read memory and never block, so they are safe on the server thread.
+ * Everything that may touch the database returns a {@link CompletableFuture} that completes off the server thread;
+ * hop back with the scheduler before using the Bukkit API in a callback.
+ * Unknown stat names are ignored by writes and read as 0.
+ */
+public interface KetchupStatsApi {
+
+    boolean isStatRegistered(String statName);
+
+    List<String> getStatNames();
+
+    /**
+     * True once the player's stats are in memory, e.g. for online players after their join load.
+     */
+    boolean isLoaded(UUID uuid);
+
+    /**
+     * The player's value if their stats are in memory, empty if they would have to be loaded first.
+     */
+    OptionalDouble getCachedStat(String statName, UUID uuid);
+
+    /**
+     * The best {@code limit} players of a stat, online and offline, highest first.
+     */
+    List<LeaderboardEntry> getTop(String statName, int limit);
+
+    /**
+     * The player's 1-based leaderboard position, or 0 if they have no value.
+     */
+    int getRank(String statName, UUID uuid);
+
+    /**
+     * The player's value, read from the database if they aren't in memory.
+     */
+    CompletableFuture<Double> getStat(String statName, UUID uuid);
+
+    /**
+     * All of the player's stats by name, stats they have no value for included as 0.
+     */
+    CompletableFuture<Map<String, Double>> getStats(UUID uuid);
+
+    /**
+     * Sets the value, clamped at 0. Completes once the change is in memory; it's saved by the write-behind flusher.
+     */
+    CompletableFuture<Void> setStat(String statName, UUID uuid, double value);
+
+    /**
+     * Adds {@code amount} (may be negative, the result is clamped at 0) and completes with the new value.
+     */
+    CompletableFuture<Double> addStat(String statName, UUID uuid, double amount);
+
+    /**
+     * Sets the value only if it currently equals {@code expected}, completes with whether it did.
+     */
+    CompletableFuture<Boolean> compareAndSet(String statName, UUID uuid, double expected, double value);
+
+    /**
+     * Sets many stats of many players: player -> (stat name -> value). Players that aren't in memory are
+     * loaded together in a few queries. Completes once every change is in memory.
+     */
+    CompletableFuture<Void> setStats(Map<UUID, Map<String, Double>> values);
+
+    /**
+     * Adds to many stats of many players: player -> (stat name -> amount). Same rules as {@link #setStats}.
+     */
+    CompletableFuture<Void> addStats(Map<UUID, Map<String, Double>> amounts);
+
+    /**
+     * With sync enabled, tells the other servers about saved changes through {@code transport} instead of
+     * the stat_changes table. Kept across reloads and closed when the plugin disables.
+     */
+    void setSyncTransport(StatTransport transport);
+}
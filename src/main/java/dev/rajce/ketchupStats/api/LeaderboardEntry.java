@@ -0,0 +1,9 @@
+package dev.rajce.ketchupStats.api;
+
+import java.util.UUID;
+
+/**
+ * One player's position on a leaderboard, see {@link KetchupStatsApi#getTop}.
+ */
+public record LeaderboardEntry(UUID uuid, double value) {
+}
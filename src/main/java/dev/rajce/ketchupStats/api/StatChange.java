@@ -0,0 +1,10 @@
+package dev.rajce.ketchupStats.api;
+
+import java.util.UUID;
+
+/**
+ * A saved change of one player's stat, as a {@link StatTransport} carries it between servers:
+ * with {@code absolute} the stat was set to {@code value}, otherwise {@code value} was added to it.
+ */
+public record StatChange(UUID uuid, String statName, boolean absolute, double value) {
+}
@@ -0,0 +1,53 @@
+package dev.rajce.ketchupStats.api;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Carries the changes one server saves to the shared database to the other servers, e.g. over a message broker,
+ * instead of the stat_changes table. Installed with {@link KetchupStatsApi#setSyncTransport}.
+ */
+public interface StatTransport {
+
+    /**
+     * Publishes changes this server saved. Runs inside the save's transaction, after its rows were written
+     * and before the commit, so a transport in the same database commits them atomically with the values.
+     * A transport outside the database should only send them once {@link #committed} is called.
+     */
+    void publish(Connection conn, List<StatChange> changes) throws SQLException;
+
+    /**
+     * Called after the transaction that published {@code changes} committed.
+     */
+    default void committed(List<StatChange> changes) {
+    }
+
+    /**
+     * Starts delivering the changes of other servers, never this one's, to {@code receiver} on one thread, oldest first.
+     * Once every later change will be delivered, the transport calls {@link Receiver#resync} so players read before are re-read.
+     */
+    void start(Receiver receiver);
+
+    /**
+     * Stops delivering changes.
+     */
+    void close();
+
+    interface Receiver {
+
+        /**
+         * Changes that became visible in the database between the two {@link System#nanoTime()} readings.
+         * Use {@link Long#MIN_VALUE} for {@code visibleAfter} when it isn't known; the changed players are then re-read.
+         * Should also be called regularly without changes: players that couldn't be re-read yet are retried then.
+         * Changes of stats this server doesn't know are ignored.
+         */
+        void receive(List<StatChange> changes, long visibleAfter, long visibleBefore);
+
+        /**
+         * Some changes may have been missed, e.g. because the transport was unreachable for too long.
+         * Every cached player is re-read from the database.
+         */
+        void resync();
+    }
+}
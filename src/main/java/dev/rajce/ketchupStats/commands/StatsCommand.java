@@ -3,6 +3,7 @@ package dev.rajce.ketchupStats.commands;
 import dev.rajce.ketchupStats.KetchupStats;
 import dev.rajce.ketchupStats.managers.DatabaseManager;
 import dev.rajce.ketchupStats.managers.MessageManager;
+import dev.rajce.ketchupStats.storage.StatTransfer;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
@@ -11,6 +12,7 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.file.NoSuchFileException;
 import java.util.UUID;
 
 public class StatsCommand implements CommandExecutor {
@@ -41,7 +43,7 @@ public class StatsCommand implements CommandExecutor {
 
                 sender.sendMessage(messageManager.translateColors("&aReloading configuration and restarting database connection..."));
 
-                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                databaseManager.runWriteAsync("reload", () -> {
                     try {
 
                         plugin.reloadAndRestartDatabase();
@@ -74,7 +76,7 @@ public class StatsCommand implements CommandExecutor {
                 }
 
 
-                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                databaseManager.runWriteAsync("createstat " + createStatName, () -> {
                     boolean success = databaseManager.createStat(createStatName);
 
                     Bukkit.getScheduler().runTask(plugin, () -> {
@@ -99,7 +101,7 @@ public class StatsCommand implements CommandExecutor {
                     return true;
                 }
 
-                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                databaseManager.runWriteAsync("deletestat " + deleteStatName, () -> {
                     boolean success = databaseManager.deleteStat(deleteStatName);
 
                     Bukkit.getScheduler().runTask(plugin, () -> {
@@ -146,7 +148,7 @@ public class StatsCommand implements CommandExecutor {
                 }
 
                 double finalValue = value;
-                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                databaseManager.runAsync(action + " " + statName + " " + strPlayer, () -> {
 
                     UUID targetUUID = getUUIDForPlayer(strPlayer);
                     if (targetUUID == null) {
@@ -183,6 +185,78 @@ public class StatsCommand implements CommandExecutor {
                 return true;
 
 
+            case "export":
+            case "import":
+                if (args.length < 2 || !hasPermission(sender, args[0])) {
+                    sender.sendMessage(messageManager.translateColors("&cUsage /ketchupstats " + args[0].toLowerCase() + " <file>"));
+                    return true;
+                }
+
+                String transferAction = args[0].toLowerCase();
+                String fileName = args[1];
+                sender.sendMessage(messageManager.translateColors("&aStarted " + transferAction + " of " + fileName + ", this can take a while..."));
+
+                // Not on the write lane: an import takes the writer chunk by chunk and must not hold up player unloads
+                databaseManager.runAsync(transferAction + " " + fileName, () -> {
+                    String message;
+                    try {
+                        StatTransfer.Result result = transferAction.equals("export")
+                                ? databaseManager.exportStats(fileName)
+                                : databaseManager.importStats(fileName);
+
+                        message = "&a" + (transferAction.equals("export") ? "Exported " : "Imported ") + result.rows() + " rows"
+                                + (result.resumed() ? " (resumed)" : "") + " in " + result.millis() / 1000.0 + " s, "
+                                + result.rowsPerSecond() + " rows/s."
+                                + (result.skipped() > 0 ? " Skipped " + result.skipped() + " invalid rows." : "");
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        message = "&c" + e.getMessage();
+                    } catch (NoSuchFileException e) {
+                        message = "&cFile " + fileName + " doesn't exist in the exports folder.";
+                    } catch (Exception e) {
+                        plugin.getSLF4JLogger().error("Failed to {} {}", transferAction, fileName, e);
+                        message = "&c" + transferAction + " of " + fileName + " failed, run the command again to continue it. Check console.";
+                    }
+
+                    final String finalMessage = message;
+                    Bukkit.getScheduler().runTask(plugin, () -> {
+                        sender.sendMessage(messageManager.translateColors(finalMessage));
+                    });
+                });
+                return true;
+
+            case "migrate":
+                if (!hasPermission(sender, args[0])) {
+                    return true;
+                }
+
+                if (args.length >= 2 && args[1].equalsIgnoreCase("cancel")) {
+                    boolean cancelled = databaseManager.cancelMigration();
+                    sender.sendMessage(messageManager.translateColors(cancelled ? "&aMigration cancelled, the current database stays in use." : "&cNo migration is running."));
+                    return true;
+                }
+
+                String targetName = plugin.getConfig().getBoolean("use-remote-database") ? "SQLite" : "the remote database";
+                sender.sendMessage(messageManager.translateColors("&aMigrating all stats to " + targetName + " while the server keeps running..."));
+
+                databaseManager.runAsync("migrate", () -> {
+                    String message;
+                    try {
+                        long rows = databaseManager.migrateBackend();
+                        message = "&aMigration finished, copied " + rows + " rows. Now using " + targetName + ".";
+                    } catch (IllegalStateException e) {
+                        message = "&c" + e.getMessage();
+                    } catch (Exception e) {
+                        plugin.getSLF4JLogger().error("Migration to {} failed", targetName, e);
+                        message = "&cMigration failed, the current database stays in use. Check console.";
+                    }
+
+                    final String finalMessage = message;
+                    Bukkit.getScheduler().runTask(plugin, () -> {
+                        sender.sendMessage(messageManager.translateColors(finalMessage));
+                    });
+                });
+                return true;
+
             case "get":
                 if (args.length < 3 || !hasPermission(sender, args[0])) {
                     sender.sendMessage(messageManager.translateColors("&cUsage /ketchupstats get <player> <statName>"));
@@ -196,7 +270,7 @@ public class StatsCommand implements CommandExecutor {
                     return true;
                 }
 
-                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                databaseManager.runAsync("get " + getStatName + " " + strPlayerGet, () -> {
 
                     UUID targetUUID = getUUIDForPlayer(strPlayerGet);
                     if (targetUUID == null) {
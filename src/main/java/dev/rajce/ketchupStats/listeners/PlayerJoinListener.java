@@ -1,7 +1,6 @@
 package dev.rajce.ketchupStats.listeners;
 
 import dev.rajce.ketchupStats.KetchupStats;
-import org.bukkit.Bukkit;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
@@ -18,9 +17,7 @@ public class PlayerJoinListener implements Listener {
     public void onPlayerJoin (PlayerJoinEvent event){
 
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            plugin.getDatabaseManager().loadPlayerStats(event.getPlayer().getUniqueId());
-        });
+        plugin.getDatabaseManager().joinPlayer(event.getPlayer().getUniqueId());
 
 
     }
@@ -1,11 +1,12 @@
 package dev.rajce.ketchupStats.listeners;
 
 import dev.rajce.ketchupStats.KetchupStats;
-import org.bukkit.Bukkit;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerQuitEvent;
 
+import java.util.UUID;
+
 public class PlayerLeaveListener implements Listener {
 
 
@@ -18,8 +19,9 @@ public class PlayerLeaveListener implements Listener {
     @EventHandler
     public void onPlayerLeave(PlayerQuitEvent event){
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            plugin.getDatabaseManager().unloadPlayerStats(event.getPlayer().getUniqueId());
+        UUID uuid = event.getPlayer().getUniqueId();
+        plugin.getDatabaseManager().runWriteAsync("unload " + event.getPlayer().getName(), () -> {
+            plugin.getDatabaseManager().unloadPlayerStats(uuid);
         });
 
     }
@@ -0,0 +1,27 @@
+package dev.rajce.ketchupStats.listeners;
+
+import dev.rajce.ketchupStats.KetchupStats;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+
+public class PlayerPreLoginListener implements Listener {
+
+    private final KetchupStats plugin;
+
+    public PlayerPreLoginListener(KetchupStats plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Already runs off the main thread, so the stats are loaded right here, before the player is in the world.
+     * MONITOR, so logins other plugins deny aren't prefetched.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+
+        plugin.getDatabaseManager().prefetchPlayerStats(event.getUniqueId());
+    }
+}
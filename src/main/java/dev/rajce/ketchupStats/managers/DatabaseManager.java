@@ -2,6 +2,30 @@ package dev.rajce.ketchupStats.managers;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import dev.rajce.ketchupStats.storage.BackendMigration;
+import dev.rajce.ketchupStats.storage.ChangeLogTransport;
+import dev.rajce.ketchupStats.storage.DatabaseExecutor;
+import dev.rajce.ketchupStats.storage.HistoryPoint;
+import dev.rajce.ketchupStats.storage.LeaderboardEntry;
+import dev.rajce.ketchupStats.storage.LeaderboardIndex;
+import dev.rajce.ketchupStats.storage.LoadBatcher;
+import dev.rajce.ketchupStats.storage.PendingLoad;
+import dev.rajce.ketchupStats.storage.PeriodClock;
+import dev.rajce.ketchupStats.storage.PeriodValue;
+import dev.rajce.ketchupStats.storage.PlayerIds;
+import dev.rajce.ketchupStats.storage.PlayerStats;
+import dev.rajce.ketchupStats.storage.SchemaMigrator;
+import dev.rajce.ketchupStats.storage.SqlDialect;
+import dev.rajce.ketchupStats.storage.StatJournal;
+import dev.rajce.ketchupStats.storage.StatTransfer;
+import dev.rajce.ketchupStats.storage.StatWindow;
+import dev.rajce.ketchupStats.storage.StatsCacheView;
+import dev.rajce.ketchupStats.storage.SyncChange;
+import dev.rajce.ketchupStats.storage.SyncTransport;
+import dev.rajce.ketchupStats.storage.UuidBytes;
+import dev.rajce.ketchupStats.storage.WarmCache;
+import dev.rajce.ketchupStats.storage.WriteAheadLog;
+import dev.rajce.ketchupStats.storage.WriteBehindFlusher;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerJoinEvent;
@@ -9,25 +33,132 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.ZoneId;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public class DatabaseManager {
 
+    private static final int PRUNE_BATCH = 500;
+
     private final JavaPlugin plugin;
     private final Logger logger;
-    private HikariDataSource dataSource;
+    // Volatile because a backend migration swaps them while the server runs
+    private volatile HikariDataSource dataSource;
+    // Connections used for writes. Same pool as dataSource, except on SQLite where it's one serialized writer.
+    private volatile HikariDataSource writeDataSource;
+    private volatile SqlDialect dialect;
+    private volatile PlayerIds playerIds;
 
     private final String fileName;
 
 
-    private final Map<String, Map<UUID, Double>> statsCache = new ConcurrentHashMap<>();
+    // Only fully loaded records, players whose load is still running are in pendingLoads
+    private final Map<UUID, PlayerStats> statsCache = new ConcurrentHashMap<>();
+    private final Map<UUID, PendingLoad> pendingLoads = new ConcurrentHashMap<>();
+    // Saved records of players who recently quit, checked before the database
+    private WarmCache warmCache;
+    // Records loaded at pre-login that no join has claimed yet, with when they were loaded
+    private final Map<UUID, Long> prefetched = new ConcurrentHashMap<>();
     private final Map<String, Integer> statNameToId = new ConcurrentHashMap<>();
     private final Map<Integer, String> statIdToName = new ConcurrentHashMap<>();
+    private final Map<Integer, LeaderboardIndex> leaderboards = new ConcurrentHashMap<>();
+    // Windows of the stats that keep period totals, and leaderboards of their current periods
+    private final Map<Integer, StatWindow[]> statWindows = new ConcurrentHashMap<>();
+    private final Map<Integer, PeriodBoard[]> periodLeaderboards = new ConcurrentHashMap<>();
+    // Records with changes the leaderboards haven't seen, folded in by updateLeaderboards()
+    private final Queue<PlayerStats> rankQueue = new ConcurrentLinkedQueue<>();
+    private final Object rankLock = new Object();
+    // How many periods of each window a stat keeps, indexed by StatWindow ordinal
+    private final Map<Integer, int[]> periodsKept = new ConcurrentHashMap<>();
+    private final Set<Integer> historyStats = ConcurrentHashMap.newKeySet();
+    private PeriodClock periodClock;
+    // Bumped whenever stats are created, deleted or reloaded, so callers can drop resolved stat ids
+    private volatile int definitionsVersion;
 
 
     private final Set<UUID> dirtyPlayers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger dirtyCells = new AtomicInteger();
+    private final Object flushLock = new Object();
+    private WriteBehindFlusher flusher;
+    private LoadBatcher loadBatcher;
+    private StatJournal journal;
+    // Deltas of records in delta mode that couldn't be saved at shutdown
+    private StatJournal deltaJournal;
+    private volatile WriteAheadLog wal;
+    // Outlives reloads, so a reload can itself run as a database task
+    private final DatabaseExecutor executor;
+
+    private volatile int lastFlushRows;
+    private final AtomicLong totalRowsWritten = new AtomicLong();
+    // Flusher runs and their time, for the periodic summary
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private long reportedFlushes;
+    private long reportedFlushNanos;
+    private long reportedFlushRows;
+
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong joinReadyNanos = new AtomicLong();
+    private final AtomicLong joinReadyMaxNanos = new AtomicLong();
+    private final AtomicBoolean transferRunning = new AtomicBoolean();
+
+    // Set while a backend migration copies data, every save is then repeated on its target
+    private volatile BackendMigration migration;
+    // Set while rows of the old uuid layout are moved to player ids in the background
+    private volatile SchemaMigrator legacyMigration;
+    private Thread legacyMigrationThread;
+    // Saves hold the read lock, a migration takes the write lock to see both databases without saves in between
+    private final ReentrantReadWriteLock migrationLock = new ReentrantReadWriteLock();
+    private long reportedJoins;
+    private long reportedWarmLookups;
+
+    // sync.enabled: records save deltas, and the transport brings other servers' changes
+    private volatile boolean syncing;
+    private volatile SyncTransport syncTransport;
+    // Installed through the API, used instead of the change log and kept across reloads
+    private SyncTransport customTransport;
+    // Records a remote change couldn't be applied to, re-read from the database by the sync thread
+    private final Set<UUID> staleRecords = ConcurrentHashMap.newKeySet();
+    private final AtomicLong remoteChangesApplied = new AtomicLong();
+    private final AtomicLong recordsReread = new AtomicLong();
+    private final SyncTransport.Receiver syncReceiver = new SyncTransport.Receiver() {
+        @Override
+        public void receive(List<SyncChange> changes, long visibleAfter, long visibleBefore) {
+            receiveChanges(changes, visibleAfter, visibleBefore);
+        }
+
+        @Override
+        public void resync() {
+            staleRecords.addAll(statsCache.keySet());
+            warmCache.forEach(stats -> staleRecords.add(stats.getUuid()));
+            refreshStaleRecords();
+        }
+    };
+
+    private final Map<String, Map<UUID, Double>> statsCacheView = new StatsCacheView(statNameToId, statsCache);
 
     public DatabaseManager(JavaPlugin plugin, String fileName) {
         this.plugin = plugin;
@@ -35,82 +166,344 @@ public class DatabaseManager {
         this.fileName = fileName;
 
         initialize();
+
+        this.executor = new DatabaseExecutor(dataSource.getMaximumPoolSize(),
+                writeDataSource != dataSource ? writeDataSource.getMaximumPoolSize() : 0, logger);
     }
 
 
     private void initialize() {
+        warmCache = new WarmCache(plugin.getConfig().getInt("warm-cache.max-players", 1000),
+                plugin.getConfig().getLong("warm-cache.ttl-seconds", 300) * 1000L);
+        journal = new StatJournal(new File(plugin.getDataFolder(), "database/unsaved-stats.journal").toPath());
+        deltaJournal = new StatJournal(new File(plugin.getDataFolder(), "database/unsaved-deltas.journal").toPath());
+        periodClock = new PeriodClock(periodZone(), this::rollover);
         setupDataSource(this.fileName);
-        createTables();
+        createTables(writeDataSource, dialect);
+        startLegacyMigration();
+        openSyncTransport();
         loadStatsDefinitions();
+        Path walDirectory = new File(plugin.getDataFolder(), "database/wal").toPath();
+        boolean recovered = recoverWriteAheadLog(walDirectory);
+        replayJournal();
+        if (recovered) startWriteAheadLog(walDirectory);
+        startFlusher();
+        startLoadBatcher();
+        seedLeaderboards();
+        if (syncTransport != null && syncTransport != customTransport) syncTransport.start(syncReceiver);
+    }
+
+    /**
+     * Creates the change log transport when sync is enabled, unless a plugin installed its own.
+     * Saves are published through it from here on; receiving starts at the end of initialize().
+     */
+    private void openSyncTransport() {
+        syncing = plugin.getConfig().getBoolean("sync.enabled", false);
+        if (!syncing) return;
+        if (customTransport != null) {
+            syncTransport = customTransport;
+            return;
+        }
+
+        String serverId = plugin.getConfig().getString("sync.server-id", "");
+        if (serverId == null || serverId.isBlank()) serverId = UUID.randomUUID().toString();
+        try {
+            syncTransport = new ChangeLogTransport(dataSource, writeDataSource, dialect, serverId,
+                    plugin.getConfig().getLong("sync.poll-interval-millis", 500),
+                    plugin.getConfig().getLong("sync.retention-seconds", 300) * 1000L, logger);
+        } catch (SQLException e) {
+            // Changes are still saved as deltas, so nothing gets overwritten; other servers only see them after a reload
+            logger.error("Could not create the stat change log, other servers won't see this one's changes until they reload", e);
+        }
+    }
+
+    private void startFlusher() {
+        long maxAgeMillis = plugin.getConfig().getLong("write-behind.max-age-seconds", 300) * 1000L;
+        // Other servers only see a change once it's saved
+        if (syncing) maxAgeMillis = Math.min(maxAgeMillis, plugin.getConfig().getLong("sync.flush-interval-millis", 1000));
+        flusher = new WriteBehindFlusher(this::saveDirtyStats, dirtyCells, logger,
+                plugin.getConfig().getInt("write-behind.flush-threshold", 5000), maxAgeMillis,
+                plugin.getConfig().getLong("write-behind.min-interval-millis", 1000));
+        flusher.start();
+    }
+
+    private void startWriteAheadLog(Path directory) {
+        if (!plugin.getConfig().getBoolean("wal.enabled", false)) return;
+        if (syncing) {
+            // Recovered values would be saved over what the other servers added since
+            logger.warn("The write-ahead log keeps values, not deltas, so it stays off while sync is enabled.");
+            return;
+        }
+
+        try {
+            wal = new WriteAheadLog(directory,
+                    (int) Math.min(Integer.MAX_VALUE / 2, plugin.getConfig().getLong("wal.segment-size-mb", 16) * 1024 * 1024),
+                    plugin.getConfig().getLong("wal.sync-interval-millis", 1000), logger);
+        } catch (IOException e) {
+            logger.error("Could not start the write-ahead log, changes are only saved by the write-behind flush", e);
+        }
+    }
+
+    private void startLoadBatcher() {
+        loadBatcher = new LoadBatcher(this::loadBatch, logger,
+                plugin.getConfig().getInt("load-batch.size", 100),
+                plugin.getConfig().getLong("load-batch.window-millis", 5),
+                Math.min(4, dataSource.getMaximumPoolSize()));
+        loadBatcher.start();
     }
 
     public void reload() {
-        saveDirtyStats();
-        close();
+        closeStorage();
         initialize();
     }
+
+    /**
+     * Runs database work on the plugin's own virtual-thread executor, named {@code name} for thread dumps and errors.
+     * Can be called from any thread.
+     */
+    public CompletableFuture<Void> runAsync(String name, Runnable task) {
+        return executor.run(name, task);
+    }
+
+    /**
+     * Like {@link #runAsync}, for work that mainly writes (unloads, stat definitions, reloads).
+     * On SQLite these queue for the single writer without holding up reads.
+     */
+    public CompletableFuture<Void> runWriteAsync(String name, Runnable task) {
+        return executor.runWrite(name, task);
+    }
+
+    /**
+     * Like {@link #runAsync}, completing with the task's result.
+     */
+    public <T> CompletableFuture<T> supplyAsync(String name, Supplier<T> task) {
+        return executor.supply(name, task);
+    }
+
+    public DatabaseExecutor getExecutor() {
+        return executor;
+    }
     private void setupDataSource(String fileName) {
+        Pools pools = openPools(plugin.getConfig().getBoolean("use-remote-database"), fileName);
+        this.dataSource = pools.read();
+        this.writeDataSource = pools.write();
+        this.dialect = pools.dialect();
+        playerIds = new PlayerIds(dialect);
+    }
+
+    /**
+     * Opens the pools of the remote database or of the local SQLite file.
+     */
+    private Pools openPools(boolean remote, String fileName) {
         HikariConfig config = new HikariConfig();
 
-        if (plugin.getConfig().getBoolean("use-remote-database")) {
-            config.setJdbcUrl(plugin.getConfig().getString("url"));
+        if (remote) {
+            String url = plugin.getConfig().getString("url");
+            SqlDialect dialect = SqlDialect.fromJdbcUrl(url);
+
+            config.setJdbcUrl(url);
             config.setUsername(plugin.getConfig().getString("username"));
             config.setPassword(plugin.getConfig().getString("password"));
-            config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+            config.setDriverClassName(dialect.driverClassName());
+            if (dialect == SqlDialect.MYSQL) {
+                // Lets the driver send a whole JDBC batch as one multi-row INSERT
+                config.addDataSourceProperty("rewriteBatchedStatements", "true");
+            }
+
+            config.setMaximumPoolSize(10);
+            config.setMinimumIdle(2);
+            config.setConnectionTimeout(30000);
+            config.setPoolName("KetchupStats-Pool");
+
+            HikariDataSource pool = new HikariDataSource(config);
+            return new Pools(pool, pool, dialect);
         } else {
 
             File databaseFile = new File(plugin.getDataFolder(), "database/" + fileName);
             if (!databaseFile.getParentFile().exists()) {
                 databaseFile.getParentFile().mkdirs();
             }
-            config.setJdbcUrl("jdbc:sqlite:" + databaseFile.getAbsolutePath());
-            config.setDriverClassName("org.sqlite.JDBC");
+
+            // SQLite only ever has one writer, so writes go through a single connection and
+            // reads use their own small pool. In WAL mode readers never wait for the writer.
+            HikariConfig writerConfig = sqliteConfig(databaseFile);
+            writerConfig.setMaximumPoolSize(1);
+            writerConfig.setMinimumIdle(1);
+            writerConfig.setPoolName("KetchupStats-Writer");
+            HikariDataSource writer = new HikariDataSource(writerConfig);
+
+            int readers = Math.max(1, plugin.getConfig().getInt("sqlite.reader-pool-size", 4));
+            HikariConfig readerConfig = sqliteConfig(databaseFile);
+            readerConfig.setMaximumPoolSize(readers);
+            readerConfig.setMinimumIdle(Math.min(2, readers));
+            readerConfig.setPoolName("KetchupStats-Readers");
+            return new Pools(new HikariDataSource(readerConfig), writer, SqlDialect.SQLITE);
         }
+    }
 
-        config.setMaximumPoolSize(10);
-        config.setMinimumIdle(2);
+    private HikariConfig sqliteConfig(File databaseFile) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        config.setDriverClassName(SqlDialect.SQLITE.driverClassName());
         config.setConnectionTimeout(30000);
-        config.setPoolName("KetchupStats-Pool");
 
-        this.dataSource = new HikariDataSource(config);
+        // Applied by the sqlite-jdbc driver to every new connection
+        config.addDataSourceProperty("journal_mode", plugin.getConfig().getString("sqlite.journal-mode", "WAL"));
+        config.addDataSourceProperty("synchronous", plugin.getConfig().getString("sqlite.synchronous", "NORMAL"));
+        config.addDataSourceProperty("cache_size", String.valueOf(-plugin.getConfig().getInt("sqlite.cache-size-kb", 16384)));
+        config.addDataSourceProperty("mmap_size", String.valueOf(plugin.getConfig().getLong("sqlite.mmap-size-mb", 256) * 1024 * 1024));
+        config.addDataSourceProperty("busy_timeout", "5000");
+        return config;
     }
 
     /**
-     * Closes the Hikari connection pool.
+     * Waits for queued database tasks, saves all dirty stats and closes the Hikari connection pools.
      * Must be called in JavaPlugin#onDisable().
      */
     public void close() {
+        executor.shutdown(TimeUnit.SECONDS.toMillis(30));
+        logger.info("Ran {} database tasks, at most {} queued at once, {} ms average wait.",
+                executor.getCompleted(), executor.getMaxQueued(),
+                String.format(Locale.ROOT, "%.2f", executor.getAverageWaitMillis()));
+        closeStorage();
+        // After the last save, which still publishes through it
+        if (customTransport != null) customTransport.close();
+    }
+
+    /**
+     * Finishes queued loads, stops the write-behind flusher, saves what is still dirty and closes the pools.
+     */
+    private void closeStorage() {
+        abortMigration("the database is closing", null);
+        stopLegacyMigration();
+        if (loadBatcher != null) {
+            loadBatcher.stop();
+            loadBatcher = null;
+        }
+        if (flusher != null) {
+            flusher.stop();
+            flusher = null;
+        }
+        boolean saved = flushOnShutdown();
+        if (wal != null) {
+            wal.close(saved);
+            wal = null;
+        }
+        if (syncTransport != null) {
+            if (syncTransport != customTransport) syncTransport.close();
+            syncTransport = null;
+        }
+        staleRecords.clear();
+        if (writeDataSource != null && writeDataSource != dataSource && !writeDataSource.isClosed()) {
+            writeDataSource.close();
+        }
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close();
             logger.info("Database connection pool closed.");
         }
     }
 
-    private void createTables() {
-        boolean isMySQL = plugin.getConfig().getBoolean("use-remote-database");
-
+    private void createTables(HikariDataSource writeDataSource, SqlDialect dialect) {
+        String autoIncrement = dialect.autoIncrementPrimaryKey();
 
-        String autoIncrement = isMySQL ? "INT AUTO_INCREMENT PRIMARY KEY" : "INTEGER PRIMARY KEY AUTOINCREMENT";
+        String uuidType = dialect.uuidType();
 
-        String uuidType = isMySQL ? "VARCHAR(36)" : "TEXT";
+        SchemaMigrator migrator = new SchemaMigrator(writeDataSource, dialect, logger);
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = writeDataSource.getConnection();
              Statement stmt = conn.createStatement()) {
 
+            migrator.renameLegacyTable(conn);
+
             stmt.execute("CREATE TABLE IF NOT EXISTS stats (" +
                     "stat_id " + autoIncrement + "," +
                     "stat_name VARCHAR(64) UNIQUE NOT NULL" +
                     ");");
 
+            stmt.execute("CREATE TABLE IF NOT EXISTS players (" +
+                    "player_id " + autoIncrement + "," +
+                    "uuid " + uuidType + " UNIQUE NOT NULL" +
+                    ");");
+
             stmt.execute("CREATE TABLE IF NOT EXISTS player_stats (" +
-                    "uuid " + uuidType + " NOT NULL," +
+                    "player_id INTEGER NOT NULL," +
+                    "stat_id INTEGER NOT NULL," +
+                    "value " + dialect.doubleType() + " NOT NULL," +
+                    "PRIMARY KEY(player_id, stat_id)" +
+                    ");");
+
+            // Totals of windowed stats per period; period_type is the StatWindow id
+            stmt.execute("CREATE TABLE IF NOT EXISTS player_stats_periods (" +
+                    "player_id INTEGER NOT NULL," +
                     "stat_id INTEGER NOT NULL," +
-                    "value REAL NOT NULL," +
-                    "PRIMARY KEY(uuid, stat_id)" +
+                    "period_type SMALLINT NOT NULL," +
+                    "period INTEGER NOT NULL," +
+                    "value " + dialect.doubleType() + " NOT NULL," +
+                    "PRIMARY KEY(player_id, stat_id, period_type, period)" +
+                    dialect.inlineIndex("idx_periods_stat", "stat_id, period_type, period") +
                     ");");
+            String periodIndex = dialect.createIndex("idx_periods_stat", "player_stats_periods", "stat_id, period_type, period");
+            if (periodIndex != null) stmt.execute(periodIndex);
 
         } catch (SQLException e) {
             logger.error("Failed to create tables", e);
+            return;
+        }
+    }
+
+    /**
+     * Moves the rows of the old uuid layout to player ids on its own thread, a chunk per transaction, until the
+     * legacy table is empty. Players loaded before their rows were moved have them moved by the load.
+     * An interrupted migration continues on the next start.
+     */
+    private void startLegacyMigration() {
+        SchemaMigrator migrator = new SchemaMigrator(writeDataSource, dialect, logger);
+        try {
+            if (!migrator.hasLegacyTable()) return;
+        } catch (SQLException e) {
+            logger.error("Failed to check for player_stats in the old layout", e);
+            return;
+        }
+        legacyMigration = migrator;
+
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            long moved = 0;
+            try {
+                while (legacyMigration == migrator) {
+                    int rows = migrator.migrateChunk();
+                    moved += rows;
+                    if (rows == 0 && migrator.dropIfEmpty()) {
+                        legacyMigration = null;
+                        logger.info("Migrated {} stat rows to the player id layout in {} ms.", moved,
+                                (System.nanoTime() - start) / 1_000_000);
+                        // The first seed ran before the moved rows were in player_stats
+                        seedLeaderboards();
+                    }
+                }
+            } catch (SQLException e) {
+                if (legacyMigration != migrator) return;
+                logger.error("Failed to migrate player_stats to the player id layout, it will be continued on the next start", e);
+            }
+        }, "KetchupStats-SchemaMigration");
+        thread.setDaemon(true);
+        legacyMigrationThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops moving legacy rows after the current chunk; the rest is moved on the next start.
+     */
+    private void stopLegacyMigration() {
+        Thread thread = legacyMigrationThread;
+        if (thread == null) return;
+
+        legacyMigration = null;
+        legacyMigrationThread = null;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -121,9 +514,16 @@ public class DatabaseManager {
      */
     public void loadStatsDefinitions() {
         statNameToId.clear();
+        leaderboards.clear();
+        statWindows.clear();
+        periodLeaderboards.clear();
+        periodsKept.clear();
+        historyStats.clear();
+        definitionsVersion++;
         statIdToName.clear();
         statsCache.clear();
-
+        warmCache.clear();
+        rankQueue.clear();
 
         String sqlDef = "SELECT stat_id, stat_name FROM stats";
         try (Connection conn = dataSource.getConnection();
@@ -135,7 +535,8 @@ public class DatabaseManager {
                 String name = rsDef.getString("stat_name");
                 statNameToId.put(name, id);
                 statIdToName.put(id, name);
-                statsCache.putIfAbsent(name, new ConcurrentHashMap<>());
+                if (leaderboardsEnabled()) leaderboards.put(id, new LeaderboardIndex());
+                registerWindows(id, name);
             }
         } catch (SQLException e) {
             logger.error("Could not load stat definitions!", e);
@@ -144,274 +545,2097 @@ public class DatabaseManager {
     }
 
 
-    private void savePlayerStats(UUID uuid) {
-        String sql = "REPLACE INTO player_stats (uuid, stat_id, value) VALUES (?, ?, ?)";
-
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            for (Map.Entry<String, Map<UUID, Double>> entry : statsCache.entrySet()) {
-                String statName = entry.getKey();
-                Map<UUID, Double> playerMap = entry.getValue();
-
-                if (!playerMap.containsKey(uuid)) continue;
+    /**
+     * Writes only the player's changed (dirty) stats and returns the number of rows written.
+     */
+    private int savePlayerStats(UUID uuid) {
+        List<DirtyRow> rows = new ArrayList<>();
+        collectDirtyRows(uuid, rows);
+        return writeRows(rows);
+    }
 
-                Integer statId = statNameToId.get(statName);
-                if (statId == null) continue;
+    /**
+     * Drains the player's dirty stats into {@code rows}, snapshotting their current values.
+     * Records in delta mode give how much a stat changed instead, unless it was set.
+     */
+    private void collectDirtyRows(UUID uuid, List<DirtyRow> rows) {
+        dirtyPlayers.remove(uuid);
 
-                ps.setString(1, uuid.toString());
-                ps.setInt(2, statId);
-                ps.setDouble(3, playerMap.get(uuid));
-                ps.addBatch();
+        PlayerStats stats = statsCache.get(uuid);
+        // Written to while it was moved to the warm cache, its changes are saved from there
+        if (stats == null) stats = warmCache.findUnsaved(uuid);
+        if (stats == null) return;
+
+        boolean deltas = stats.tracksDeltas();
+        for (int statId : stats.drainDirty()) {
+            if (!statIdToName.containsKey(statId)) continue;
+            if (!deltas) {
+                rows.add(new DirtyRow(stats, statId, stats.get(statId)));
+                continue;
             }
-            ps.executeBatch();
-            dirtyPlayers.remove(uuid);
 
-        } catch (SQLException e) {
-            logger.error("Failed to save stats for {}", uuid, e);
+            boolean absolute = stats.takeAssigned(statId);
+            double value = stats.takeChange(statId, absolute);
+            if (!absolute && value == 0) {
+                // Added to and taken away again, nothing to write
+                stats.settle(false);
+                continue;
+            }
+            rows.add(new DirtyRow(stats, statId, value, null, !absolute));
+        }
+        for (PeriodValue period : stats.drainDirtyPeriods()) {
+            if (statIdToName.containsKey(period.statId()) && !(deltas && period.value() == 0)) {
+                rows.add(new DirtyRow(stats, period.statId(), period.value(), period, deltas));
+            } else {
+                stats.settle(false);
+            }
         }
     }
 
     /**
-     * loads player data and puts it in the RAM cache.
-     * Must be called ASYNCHRONOUSLY in a PlayerJoinEvent listener.
+     * Writes the rows on a single connection, committing every save-batch-size rows.
+     * Rows that didn't get committed are marked dirty again. Returns the number of rows written.
+     * While a backend migration runs, the written rows are repeated on its target.
      */
-    public void loadPlayerStats(UUID uuid) {
-        String sqlData = "SELECT stat_id, value FROM player_stats WHERE uuid = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement psData = conn.prepareStatement(sqlData)) {
+    private int writeRows(List<DirtyRow> rows) {
+        if (rows.isEmpty()) return 0;
+
+        migrationLock.readLock().lock();
+        try {
+            int committed = saveRows(rows);
+            BackendMigration target = migration;
+            if (target != null && committed > 0) copyToMigrationTarget(target, rows.subList(0, committed));
+            return committed;
+        } finally {
+            migrationLock.readLock().unlock();
+        }
+    }
 
-            psData.setString(1, uuid.toString());
-            try (ResultSet rsData = psData.executeQuery()) {
-                while (rsData.next()) {
-                    int statId = rsData.getInt("stat_id");
-                    double value = rsData.getDouble("value");
-                    String statName = statIdToName.get(statId);
+    private int saveRows(List<DirtyRow> rows) {
+        String[] keys = {"player_id", "stat_id"};
+        String[] periodKeys = {"player_id", "stat_id", "period_type", "period"};
+        String[] values = {"value"};
+        int batchSize = Math.max(1, plugin.getConfig().getInt("save-batch-size", 500));
+        SyncTransport transport = syncTransport;
+        int committed = 0;
+
+        try (Connection conn = writeDataSource.getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement ps = conn.prepareStatement(dialect.upsert("player_stats", keys, values));
+                 PreparedStatement periodPs = conn.prepareStatement(dialect.upsert("player_stats_periods", periodKeys, values));
+                 PreparedStatement deltaPs = conn.prepareStatement(dialect.upsertAdding("player_stats", keys, values));
+                 PreparedStatement periodDeltaPs = conn.prepareStatement(dialect.upsertAdding("player_stats_periods", periodKeys, values))) {
+                assignPlayerIds(conn, rows);
+                conn.commit();
 
-                    if (statName != null) {
-                        statsCache.get(statName).put(uuid, value);
+                while (committed < rows.size()) {
+                    int end = Math.min(committed + batchSize, rows.size());
+                    // Which of the four statements got rows, by bit
+                    int used = 0;
+                    List<SyncChange> changes = transport != null ? new ArrayList<>() : List.of();
+
+                    for (int i = committed; i < end; i++) {
+                        DirtyRow row = rows.get(i);
+                        if (row.period() == null) {
+                            PreparedStatement target = row.delta() ? deltaPs : ps;
+                            target.setInt(1, row.stats().getPlayerId());
+                            target.setInt(2, row.statId());
+                            target.setDouble(3, row.value());
+                            target.addBatch();
+                            used |= row.delta() ? 4 : 1;
+                            if (transport != null) changes.add(new SyncChange(row.stats().getUuid(), row.statId(), !row.delta(), row.value()));
+                        } else {
+                            PreparedStatement target = row.delta() ? periodDeltaPs : periodPs;
+                            target.setInt(1, row.stats().getPlayerId());
+                            target.setInt(2, row.statId());
+                            target.setInt(3, row.period().window().id());
+                            target.setInt(4, row.period().period());
+                            target.setDouble(5, row.value());
+                            target.addBatch();
+                            used |= row.delta() ? 8 : 2;
+                        }
+                    }
+                    if ((used & 1) != 0) ps.executeBatch();
+                    if ((used & 2) != 0) periodPs.executeBatch();
+                    if ((used & 4) != 0) deltaPs.executeBatch();
+                    if ((used & 8) != 0) periodDeltaPs.executeBatch();
+                    if (transport != null) transport.publish(conn, changes);
+                    conn.commit();
+                    if (transport != null) transport.committed(changes);
+
+                    for (int i = committed; i < end; i++) {
+                        DirtyRow row = rows.get(i);
+                        row.stats().settle(row.period() == null && !row.delta());
                     }
+                    committed = end;
                 }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
+
         } catch (SQLException e) {
-            logger.error("Could not load stats for player {}", uuid, e);
+            logger.error("Failed to save {} stats, they will be retried on the next save", rows.size() - committed, e);
+
+            for (int i = committed; i < rows.size(); i++) {
+                DirtyRow row = rows.get(i);
+                if (row.period() != null) {
+                    row.stats().markPeriodDirty(row.period());
+                } else if (row.stats().tracksDeltas()) {
+                    row.stats().untake(row.statId(), row.value(), !row.delta());
+                } else {
+                    row.stats().markDirty(row.statId());
+                }
+                dirtyPlayers.add(row.stats().getUuid());
+            }
         }
+        return committed;
     }
 
     /**
-     * Saves stats for all 'dirty' players to the database.
-     * Must be called ASYNCHRONOUSLY via a repeating Bukkit scheduler task (e.g., every 5 minutes).
+     * Repeats saved rows on the target of the running migration, with the players rows they need.
+     * A failure aborts the migration, never the save.
      */
-    public void saveDirtyStats() {
-        if (dirtyPlayers.isEmpty()) return;
-
-        Set<UUID> toSave = new HashSet<>(dirtyPlayers);
-        logger.info("Auto-saving stats for {} dirty players...", toSave.size());
-
-        for (UUID uuid : toSave) {
-
-            Player player = Bukkit.getPlayer(uuid);
-            boolean isOnline = (player != null && player.isOnline());
-
-            if (isOnline) {
-
-                savePlayerStats(uuid);
-            } else {
-
-                unloadPlayerStats(uuid);
+    private void copyToMigrationTarget(BackendMigration target, List<DirtyRow> rows) {
+        SqlDialect targetDialect = target.getTargetDialect();
+        try (Connection conn = target.getTargetWrite().getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement players = conn.prepareStatement(targetDialect.insertIgnore("players", new String[]{"player_id"}, new String[]{"uuid"}));
+                 PreparedStatement ps = conn.prepareStatement(targetDialect.upsert("player_stats", new String[]{"player_id", "stat_id"}, new String[]{"value"}));
+                 PreparedStatement periodPs = conn.prepareStatement(targetDialect.upsert("player_stats_periods",
+                         new String[]{"player_id", "stat_id", "period_type", "period"}, new String[]{"value"}))) {
+
+                Set<Integer> playerIds = new HashSet<>();
+                for (DirtyRow row : rows) {
+                    int playerId = row.stats().getPlayerId();
+                    if (playerIds.add(playerId)) {
+                        target.touched(playerId);
+                        players.setInt(1, playerId);
+                        players.setBytes(2, UuidBytes.toBytes(row.stats().getUuid()));
+                        players.addBatch();
+                    }
+                    if (row.period() == null) {
+                        ps.setInt(1, playerId);
+                        ps.setInt(2, row.statId());
+                        ps.setDouble(3, row.value());
+                        ps.addBatch();
+                    } else {
+                        periodPs.setInt(1, playerId);
+                        periodPs.setInt(2, row.statId());
+                        periodPs.setInt(3, row.period().window().id());
+                        periodPs.setInt(4, row.period().period());
+                        periodPs.setDouble(5, row.value());
+                        periodPs.addBatch();
+                    }
+                }
+                players.executeBatch();
+                ps.executeBatch();
+                periodPs.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
+        } catch (SQLException e) {
+            abortMigration("saving changes to the new database failed", e);
         }
     }
 
     /**
-     * Saves player data and removes it from the RAM cache.
-     * Must be called ASYNCHRONOUSLY in a PlayerQuitEvent listener.
+     * Gives every record in {@code rows} that doesn't have one yet a players row and id.
      */
-    public void unloadPlayerStats(UUID uuid) {
-
-        if (dirtyPlayers.contains(uuid)) {
-            savePlayerStats(uuid);
+    private void assignPlayerIds(Connection conn, List<DirtyRow> rows) throws SQLException {
+        Map<UUID, PlayerStats> missing = new HashMap<>();
+        for (DirtyRow row : rows) {
+            if (row.stats().getPlayerId() == 0) {
+                missing.put(row.stats().getUuid(), row.stats());
+            }
         }
+        if (missing.isEmpty()) return;
 
-
-        for (Map<UUID, Double> statMap : statsCache.values()) {
-            statMap.remove(uuid);
+        Map<UUID, Integer> ids = playerIds.resolve(conn, missing.keySet());
+        for (PlayerStats stats : missing.values()) {
+            Integer playerId = ids.get(stats.getUuid());
+            if (playerId == null) throw new SQLException("No player_id for " + stats.getUuid());
+            stats.setPlayerId(playerId);
         }
+    }
 
-        dirtyPlayers.remove(uuid);
+    /**
+     * Starts loading the player's stats on an async thread, unless they're already cached or loading.
+     * Reads return 0.0 and writes are buffered until the returned future completes.
+     * Can be called synchronously, e.g. in a PlayerJoinEvent listener.
+     */
+    public CompletableFuture<Void> loadPlayerStatsAsync(UUID uuid) {
+        return load(uuid).thenApply(stats -> null);
     }
 
+    /**
+     * Loads the player's stats during AsyncPlayerPreLoginEvent, so they're ready when the player joins.
+     * Unclaimed records are dropped by {@link #expirePrefetches}.
+     * Must be called ASYNCHRONOUSLY.
+     */
+    public void prefetchPlayerStats(UUID uuid) {
+        if (statsCache.containsKey(uuid)) return;
 
+        prefetched.put(uuid, System.nanoTime());
+        awaitLoaded(uuid);
+    }
 
     /**
-     * Gets a player's stat value from the RAM cache.
-     * Can be called synchronously by PAPI!!!!
+     * Claims the record prefetched at pre-login, or starts loading it if there is none,
+     * and records how long it took until the stats were ready.
+     * Can be called synchronously, in a PlayerJoinEvent listener.
      */
-    public double getStat(String statName, UUID uuid) {
-        if (!isStatRegistered(statName)) {
-
-            return 0.0;
+    public CompletableFuture<Void> joinPlayer(UUID uuid) {
+        long start = System.nanoTime();
+        if (prefetched.remove(uuid) != null && statsCache.containsKey(uuid)) {
+            prefetchHits.incrementAndGet();
         }
 
-        return statsCache.getOrDefault(statName, Collections.emptyMap()).getOrDefault(uuid, 0.0);
+        return loadPlayerStatsAsync(uuid).whenComplete((ignored, e) -> {
+            long took = System.nanoTime() - start;
+            joins.incrementAndGet();
+            joinReadyNanos.addAndGet(took);
+            joinReadyMaxNanos.accumulateAndGet(took, Math::max);
+        });
     }
 
     /**
-     * Gets a player's stat value from the RAM cache or DB.
-     * Must be Async
+     * Unloads prefetched records whose login never completed and logs the prefetch hit rate.
+     * Must be called ASYNCHRONOUSLY, from a repeating task.
      */
-    public double getStatAsync(String statName, UUID uuid) {
-        if (!isStatRegistered(statName)) return 0.0;
+    public void expirePrefetches(long ttlMillis) {
+        long now = System.nanoTime();
+        long ttlNanos = ttlMillis * 1_000_000L;
 
+        for (Map.Entry<UUID, Long> entry : prefetched.entrySet()) {
+            UUID uuid = entry.getKey();
+            if (now - entry.getValue() < ttlNanos || Bukkit.getPlayer(uuid) != null) continue;
 
-        Map<UUID, Double> playerMap = statsCache.get(statName);
-        if (playerMap != null && playerMap.containsKey(uuid)) {
-            return playerMap.get(uuid);
+            if (prefetched.remove(uuid, entry.getValue())) {
+                // Saved like a quit, the player may have been given stats while logging in
+                unloadPlayerStats(uuid);
+            }
         }
 
-
-        return getStatFromDatabase(statName, uuid);
+        long joined = joins.get();
+        if (joined == reportedJoins) return;
+        reportedJoins = joined;
+        logger.info("Prefetch hit rate {}% ({} of {} joins), stats ready {} ms after join on average, {} ms at most.",
+                prefetchHits.get() * 100 / joined, prefetchHits.get(), joined,
+                String.format(Locale.ROOT, "%.2f", joinReadyNanos.get() / (double) joined / 1_000_000),
+                String.format(Locale.ROOT, "%.2f", joinReadyMaxNanos.get() / 1_000_000.0));
     }
 
-    private double getStatFromDatabase(String statName, UUID uuid) {
-        Integer statId = statNameToId.get(statName);
-        if (statId == null) return 0.0;
-
-        String sql = "SELECT value FROM player_stats WHERE uuid = ? AND stat_id = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            ps.setString(1, uuid.toString());
-            ps.setInt(2, statId);
-
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getDouble("value");
-            }
-        } catch (SQLException e) {
-            logger.error("Database error while getting stat offline", e);
-        }
-        return 0.0;
+    /**
+     * Drops expired warm cache records and logs its hit rate.
+     * Must be called ASYNCHRONOUSLY, from a repeating task.
+     */
+    public void expireWarmPlayers() {
+        int expired = warmCache.expire();
+
+        long loadHits = warmCache.getHits();
+        long loads = loadHits + warmCache.getMisses();
+        long lookupHits = warmCache.getLookupHits();
+        long lookups = lookupHits + warmCache.getLookupMisses();
+        if (loads + lookups == reportedWarmLookups) return;
+        reportedWarmLookups = loads + lookups;
+        logger.info("Warm cache: {}% of loads ({} of {}) and {}% of offline lookups ({} of {}) hit, {} players cached, {} expired.",
+                loads > 0 ? loadHits * 100 / loads : 0, loadHits, loads,
+                lookups > 0 ? lookupHits * 100 / lookups : 0, lookupHits, lookups,
+                warmCache.size(), expired);
     }
 
     /**
-     * Sets a player's stat value and marks the player as 'dirty'.
-     * Can be called synchronously from any thread (events, commands).
+     * Loads player data and puts it in the RAM cache, waiting for a load that is already running.
+     * Must be called ASYNCHRONOUSLY.
      */
-    public void setStat(String statName, UUID uuid, double value) {
-        if (!isStatRegistered(statName)) return;
+    public void loadPlayerStats(UUID uuid) {
+        awaitLoaded(uuid);
+    }
 
-        // KOREKCE: Zajištění, že hodnota nikdy neklesne pod nulu
-        double finalValue = Math.max(0, value);
+    /**
+     * Returns the player's cached record, or the future of their pending load, queueing one if needed.
+     */
+    private CompletableFuture<PlayerStats> load(UUID uuid) {
+        PlayerStats cached = statsCache.get(uuid);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        PendingLoad created = new PendingLoad();
+        PendingLoad pending = pendingLoads.putIfAbsent(uuid, created);
+        if (pending != null) return pending.future();
+
+        // A load may have finished between the two lookups, its record is complete so just use it
+        cached = statsCache.get(uuid);
+        if (cached != null) {
+            publish(uuid, created, cached);
+            return created.future();
+        }
 
-        statsCache.computeIfAbsent(statName, k -> new ConcurrentHashMap<>()).put(uuid, finalValue);
+        // Only the owner of the pending load may promote a warm record, so it can't overwrite a fresher one
+        PlayerStats warm = warmCache.take(uuid);
+        if (warm != null) {
+            // Changed after its final save, e.g. by a write racing the unload
+            if (warm.hasDirty()) dirtyPlayers.add(uuid);
+            publish(uuid, created, warm);
+            return created.future();
+        }
 
-        dirtyPlayers.add(uuid);
+        loadBatcher.submit(uuid);
+        return created.future();
     }
 
     /**
-     * Increments a player's stat value and marks the player as 'dirty'.
-     * Can be called synchronously from any thread (events, commands).
+     * Waits for the player's record to be loaded. Returns null if loading failed.
      */
-    public void addStat(String statName, UUID uuid, double amount) {
-        setStat(statName, uuid, getStatAsync(statName, uuid) + amount);
+    private PlayerStats awaitLoaded(UUID uuid) {
+        if (!statsCache.containsKey(uuid)) warnIfPrimaryThread("Loading stats of " + uuid);
+        try {
+            return executor.await(load(uuid));
+        } catch (CompletionException e) {
+            return null;
+        }
     }
 
     /**
-     * Checks if a statistic is defined.
-     * Can be called synchronously.
+     * Loads a batch of queued players with one IN-list query and publishes every record.
+     * Runs on the load batcher thread.
      */
-    public boolean isStatRegistered(String statName) {
-        return statNameToId.containsKey(statName);
+    private void loadBatch(List<UUID> uuids) {
+        Map<UUID, PlayerStats> records = new HashMap<>();
+        for (UUID uuid : uuids) {
+            records.put(uuid, newRecord(uuid));
+        }
+
+        try {
+            readPlayerStats(records);
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Could not load stats for {} players", uuids.size(), e);
+            for (UUID uuid : uuids) {
+                PendingLoad pending = pendingLoads.get(uuid);
+                if (pending == null) continue;
+
+                int dropped = pending.discard();
+                pendingLoads.remove(uuid, pending);
+                if (dropped > 0) logger.error("Dropped {} stat changes made while {} was loading", dropped, uuid);
+                pending.future().completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (PlayerStats stats : records.values()) {
+            PendingLoad pending = pendingLoads.get(stats.getUuid());
+            if (pending != null) publish(stats.getUuid(), pending, stats);
+        }
     }
 
     /**
-     * Creates a new statistic definition in the database and registers it in the cache.
-     * Must be called ASYNCHRONOUSLY to prevent lag.
+     * Merges the writes buffered during the load into the record and makes it visible in the cache.
      */
-    public boolean createStat(String statName){
-        synchronized (statNameToId) {
-            if (isStatRegistered(statName)) return false;
+    private void publish(UUID uuid, PendingLoad pending, PlayerStats stats) {
+        PendingLoad.Change[] changes = pending.merge(stats, 0, merged -> {
+            // Period totals before the record is visible, a flush that finds it must find them too
+            for (PendingLoad.Change change : merged) {
+                StatWindow[] windows = statWindows.get(change.statId());
+                if (windows != null && change.delta() != 0) addToPeriods(stats, change.statId(), windows, change.delta());
+            }
+            statsCache.put(uuid, stats);
+        });
+        pendingLoads.remove(uuid, pending);
 
-            String sql = "INSERT INTO stats (stat_name) VALUES (?)";
+        for (PendingLoad.Change change : changes) {
+            // Delta 0, the period totals already have it
+            changed(stats, change.statId(), WriteAheadLog.MERGE, 0);
+        }
+        if (!leaderboards.isEmpty()) queueRanked(stats);
+        pending.future().complete(stats);
+    }
 
-            try (Connection conn = dataSource.getConnection();
-                 PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+    private void readPlayerStats(Map<UUID, PlayerStats> records) throws SQLException {
+        long readStart = System.nanoTime();
+        // Rows still in the old layout would otherwise load as missing, and be lost to the first save
+        SchemaMigrator legacy = legacyMigration;
+        if (legacy != null) legacy.migratePlayers(records.keySet());
 
-                ps.setString(1, statName);
-                ps.executeUpdate();
+        String sqlData = "SELECT p.uuid, p.player_id, ps.stat_id, ps.value FROM players p " +
+                "LEFT JOIN player_stats ps ON ps.player_id = p.player_id WHERE p.uuid IN (" +
+                PlayerIds.placeholders(records.size()) + ")";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement psData = conn.prepareStatement(sqlData)) {
 
-                try (ResultSet keys = ps.getGeneratedKeys()) {
-                    if (keys.next()) {
-                        int statId = keys.getInt(1);
+            int index = 1;
+            for (UUID uuid : records.keySet()) {
+                psData.setBytes(index++, UuidBytes.toBytes(uuid));
+            }
+            try (ResultSet rsData = psData.executeQuery()) {
+                while (rsData.next()) {
+                    PlayerStats stats = records.get(UuidBytes.fromBytes(rsData.getBytes("uuid")));
+                    if (stats == null) continue;
 
-                        statNameToId.put(statName, statId);
-                        statIdToName.put(statId, statName);
-                        statsCache.put(statName, new ConcurrentHashMap<>());
+                    stats.setPlayerId(rsData.getInt("player_id"));
+                    int statId = rsData.getInt("stat_id");
+                    if (rsData.wasNull()) continue;
+                    double value = rsData.getDouble("value");
 
-                        logger.info("Created new stat: {} (ID: {})", statName, statId);
-                        return true;
+                    if (statIdToName.containsKey(statId)) {
+                        stats.load(statId, value);
                     }
                 }
-            } catch (SQLException e) {
-                logger.error("Failed to create stat '{}'", statName, e);
             }
-            return false;
+            if (!statWindows.isEmpty()) readPeriods(conn, records.values());
+        }
+        long readEnd = System.nanoTime();
+        for (PlayerStats stats : records.values()) {
+            stats.setReadWindow(readStart, readEnd);
         }
     }
 
     /**
-     * Deletes a statistic definition from the database and removes all associated player data.
-     * Must be called ASYNCHRONOUSLY to prevent server lag.
+     * Loads the totals of the current periods into the records that have a players row.
      */
-    public boolean deleteStat(String statName) {
-        synchronized (statNameToId) {
-            if (!isStatRegistered(statName)) {
-                return true;
-            }
-
-            Integer statId = statNameToId.get(statName);
-            if (statId == null) return false;
-
+    private void readPeriods(Connection conn, Collection<PlayerStats> records) throws SQLException {
+        Map<Integer, PlayerStats> byPlayerId = new HashMap<>();
+        for (PlayerStats stats : records) {
+            if (stats.getPlayerId() != 0) byPlayerId.put(stats.getPlayerId(), stats);
+        }
+        if (byPlayerId.isEmpty()) return;
 
-            String sqlDeletePlayerStats = "DELETE FROM player_stats WHERE stat_id = ?";
-            String sqlDeleteStat = "DELETE FROM stats WHERE stat_id = ?";
+        StatWindow[] windows = StatWindow.values();
+        int[] current = new int[windows.length];
+        String sql = "SELECT player_id, stat_id, period_type, period, value FROM player_stats_periods WHERE player_id IN (" +
+                PlayerIds.placeholders(byPlayerId.size()) + ") AND period IN (" + PlayerIds.placeholders(windows.length) + ")";
 
-            try (Connection conn = dataSource.getConnection()) {
-                conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int index = 1;
+            for (int playerId : byPlayerId.keySet()) {
+                ps.setInt(index++, playerId);
+            }
+            for (StatWindow window : windows) {
+                current[window.ordinal()] = periodClock.current(window);
+                ps.setInt(index++, current[window.ordinal()]);
+            }
 
-                try (PreparedStatement psData = conn.prepareStatement(sqlDeletePlayerStats)) {
-                    psData.setInt(1, statId);
-                    psData.executeUpdate();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int typeId = rs.getInt("period_type");
+                    int period = rs.getInt("period");
+                    int statId = rs.getInt("stat_id");
+                    // The IN list matches any window's current period, keep only the row's own
+                    if (typeId < 0 || typeId >= windows.length || current[typeId] != period || !statWindows.containsKey(statId)) continue;
+
+                    PlayerStats stats = byPlayerId.get(rs.getInt("player_id"));
+                    if (stats != null) stats.loadPeriod(statId, StatWindow.fromId(typeId), period, rs.getDouble("value"));
                 }
+            }
+        }
+    }
 
-                try (PreparedStatement psStat = conn.prepareStatement(sqlDeleteStat)) {
-                    psStat.setInt(1, statId);
-                    psStat.executeUpdate();
+    /**
+     * Saves every dirty stat in batches of save-batch-size rows, as many at once as there are writer connections.
+     * Whatever isn't committed when shutdown.flush-timeout-seconds runs out is appended to the journal instead,
+     * so a slow or unreachable database can't hold up the shutdown or lose the changes.
+     * Returns false if some changes are neither in the database nor in the journal.
+     */
+    private boolean flushOnShutdown() {
+        synchronized (flushLock) {
+            if (dirtyPlayers.isEmpty()) return true;
+
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(
+                    Math.max(1, plugin.getConfig().getLong("shutdown.flush-timeout-seconds", 10)));
+            int batchSize = Math.max(1, plugin.getConfig().getInt("save-batch-size", 500));
+
+            // A player's rows always end up in the same batch, so batches never race to create one players row
+            List<List<DirtyRow>> batches = new ArrayList<>();
+            List<DirtyRow> batch = new ArrayList<>();
+            int players = 0;
+            for (UUID uuid : new ArrayList<>(dirtyPlayers)) {
+                collectDirtyRows(uuid, batch);
+                players++;
+                if (batch.size() >= batchSize) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) batches.add(batch);
+
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService savers = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(batches.size(), writeDataSource.getMaximumPoolSize())), task -> {
+                        Thread thread = new Thread(task, "KetchupStats-Shutdown-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            List<Future<Integer>> results = new ArrayList<>();
+            // 0 queued, 1 started, 2 given up on before it started
+            AtomicIntegerArray states = new AtomicIntegerArray(batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                List<DirtyRow> rows = batches.get(i);
+                int index = i;
+                results.add(savers.submit(() -> states.compareAndSet(index, 0, 1) ? writeRows(rows) : 0));
+            }
+            savers.shutdown();
+
+            int written = 0;
+            int lostPeriods = 0;
+            int uncertain = 0;
+            List<StatJournal.Entry> unsaved = new ArrayList<>();
+            List<StatJournal.Entry> unsavedDeltas = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++) {
+                List<DirtyRow> rows = batches.get(i);
+                int committed = 0;
+                boolean running = false;
+                try {
+                    committed = results.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // Batches that haven't started never will; one still running may commit later, journaling its values too is harmless
+                    running = !states.compareAndSet(i, 0, 2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    logger.error("Failed to save a batch of {} stats on shutdown", rows.size(), e.getCause());
+                }
+
+                written += committed;
+                for (DirtyRow row : rows.subList(committed, rows.size())) {
+                    if (row.period() != null) {
+                        lostPeriods++;
+                    } else if (!row.delta()) {
+                        unsaved.add(new StatJournal.Entry(row.stats().getUuid(), row.statId(), row.value()));
+                    } else if (running) {
+                        // Unlike a value, a delta saved twice counts twice
+                        uncertain++;
+                    } else {
+                        unsavedDeltas.add(new StatJournal.Entry(row.stats().getUuid(), row.statId(), row.value()));
+                    }
+                }
+            }
+            if (lostPeriods > 0) {
+                logger.warn("{} period totals couldn't be saved in time and are lost, the journal only keeps all-time values.", lostPeriods);
+            }
+            if (uncertain > 0) {
+                logger.warn("{} stat changes were still being saved when the shutdown timeout ran out, they may be lost.", uncertain);
+            }
+
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            lastFlushRows = written;
+            totalRowsWritten.addAndGet(written);
+            logger.info("Saved {} changed stats for {} players in {} batches in {} ms on shutdown.",
+                    written, players, batches.size(), millis);
+
+            return journalUnsaved(journal, unsaved) & journalUnsaved(deltaJournal, unsavedDeltas);
+        }
+    }
+
+    private boolean journalUnsaved(StatJournal target, List<StatJournal.Entry> unsaved) {
+        if (unsaved.isEmpty()) return true;
+        try {
+            long journalStart = System.nanoTime();
+            target.append(unsaved);
+            logger.warn("{} stats couldn't be saved in time and were written to {} in {} ms, they will be saved on the next start.",
+                    unsaved.size(), target.getPath(), (System.nanoTime() - journalStart) / 1_000_000);
+            return true;
+        } catch (IOException e) {
+            logger.error("Could not write {} unsaved stats to {}, they are lost unless the write-ahead log has them",
+                    unsaved.size(), target.getPath(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Moves the changes a crashed run left in the write-ahead log into the journal, which saves them right after.
+     * Returns false if they couldn't be moved; the segments are then kept and the log stays off until the next start.
+     * While syncing they are kept as well: they hold values, saving them would overwrite other servers' changes.
+     */
+    private boolean recoverWriteAheadLog(Path directory) {
+        try {
+            List<StatJournal.Entry> entries = WriteAheadLog.recover(directory);
+            if (!entries.isEmpty() && syncing) {
+                logger.error("The write-ahead log in {} holds {} stat changes of a crashed run without sync. They are kept; " +
+                        "start once with sync disabled while the other servers are stopped to save them.", directory, entries.size());
+                return false;
+            }
+            if (!entries.isEmpty()) {
+                journal.append(entries);
+                logger.warn("The last shutdown wasn't clean, recovered {} stat changes from the write-ahead log.", entries.size());
+            }
+            WriteAheadLog.deleteSegments(directory);
+            return true;
+        } catch (IOException e) {
+            logger.error("Could not recover the write-ahead log in {}, it will be retried on the next start", directory, e);
+            return false;
+        }
+    }
+
+    /**
+     * Saves the stats a previous shutdown left in the journals, then empties them.
+     */
+    private void replayJournal() {
+        replayJournal(journal, false);
+        replayJournal(deltaJournal, true);
+    }
+
+    /**
+     * Saves the records of one journal: values, the last record of a cell winning, or with {@code deltas}
+     * changes to add, summed per cell. Values that can't be saved stay in the journal for the next start;
+     * of deltas only the unsaved ones are kept, a delta saved twice would count twice.
+     */
+    private void replayJournal(StatJournal source, boolean deltas) {
+        List<StatJournal.Entry> entries;
+        try {
+            entries = source.read();
+        } catch (IOException e) {
+            logger.error("Could not read {}, it will be retried on the next start", source.getPath(), e);
+            return;
+        }
+        if (entries.isEmpty()) return;
+
+        Map<UUID, PlayerStats> records = new LinkedHashMap<>();
+        AtomicInteger cells = new AtomicInteger();
+        for (StatJournal.Entry entry : entries) {
+            if (!statIdToName.containsKey(entry.statId())) continue;
+            PlayerStats stats = records.computeIfAbsent(entry.uuid(), uuid -> new PlayerStats(uuid, cells));
+            if (deltas) {
+                stats.getAndAdd(entry.statId(), entry.value(), Double.NEGATIVE_INFINITY);
+            } else {
+                stats.set(entry.statId(), entry.value());
+            }
+        }
+
+        List<DirtyRow> rows = new ArrayList<>();
+        for (PlayerStats stats : records.values()) {
+            for (int statId : stats.drainDirty()) {
+                rows.add(new DirtyRow(stats, statId, stats.get(statId), null, deltas));
+            }
+        }
+        int written = writeRows(rows);
+        // writeRows marks failed rows dirty again, but these records aren't cached so nothing else will save them
+        records.keySet().forEach(dirtyPlayers::remove);
+
+        if (written < rows.size()) {
+            if (deltas) {
+                List<StatJournal.Entry> left = new ArrayList<>();
+                for (DirtyRow row : rows.subList(written, rows.size())) {
+                    left.add(new StatJournal.Entry(row.stats().getUuid(), row.statId(), row.value()));
+                }
+                try {
+                    source.truncate();
+                    source.append(left);
+                } catch (IOException e) {
+                    logger.error("Could not rewrite {}, some of its changes may be saved twice on the next start", source.getPath(), e);
+                }
+            }
+            logger.warn("Saved only {} of {} stats from {}, the rest will be retried on the next start.",
+                    written, rows.size(), source.getPath());
+            return;
+        }
+        try {
+            source.truncate();
+        } catch (IOException e) {
+            logger.error("Could not truncate {}, its stats will be saved again on the next start", source.getPath(), e);
+        }
+        logger.info("Saved {} stats of {} players left in {} by the last shutdown.", written, records.size(), source.getPath());
+    }
+
+    /**
+     * Saves stats for all 'dirty' players to the database.
+     * Runs on the write-behind flusher thread; only call it directly on reload and shutdown.
+     */
+    public void saveDirtyStats() {
+        synchronized (flushLock) {
+            flushDirtyStats();
+        }
+    }
+
+    private void flushDirtyStats() {
+        if (dirtyPlayers.isEmpty()) return;
+
+        long start = System.nanoTime();
+        // Changes logged before the mark were queued in dirtyPlayers before it too, so this flush covers them
+        WriteAheadLog log = wal;
+        long mark = log != null ? log.mark() : 0;
+        Set<UUID> toSave = new HashSet<>(dirtyPlayers);
+        List<DirtyRow> rows = new ArrayList<>();
+
+        for (UUID uuid : toSave) {
+            collectDirtyRows(uuid, rows);
+        }
+
+        int written = writeRows(rows);
+        if (log != null && written == rows.size()) log.checkpoint(mark);
+
+        for (UUID uuid : toSave) {
+
+            Player player = Bukkit.getPlayer(uuid);
+            boolean isOnline = (player != null && player.isOnline());
+
+            if (!isOnline && !dirtyPlayers.contains(uuid)) {
+                evict(uuid);
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        long millis = Math.max(1, nanos / 1_000_000);
+        lastFlushRows = written;
+        totalRowsWritten.addAndGet(written);
+        flushes.incrementAndGet();
+        flushNanos.addAndGet(nanos);
+        // The flusher may run every second, logSaveSummary() reports the totals
+        logger.debug("Saved {} changed stats for {} players in {} ms ({} rows/s).",
+                written, toSave.size(), millis, written * 1000L / millis);
+    }
+
+    /**
+     * Logs how many stats the write-behind flusher saved since the last call, if it ran at all.
+     * Must be called ASYNCHRONOUSLY, from a repeating task.
+     */
+    public void logSaveSummary() {
+        long runs = flushes.get();
+        if (runs == reportedFlushes) return;
+        long rows = totalRowsWritten.get();
+        long nanos = flushNanos.get();
+
+        long newRows = rows - reportedFlushRows;
+        long millis = Math.max(1, (nanos - reportedFlushNanos) / 1_000_000);
+        logger.info("Saved {} changed stats in {} flushes, {} ms spent saving ({} rows/s while saving).",
+                newRows, runs - reportedFlushes, millis, newRows * 1000L / millis);
+        reportedFlushes = runs;
+        reportedFlushRows = rows;
+        reportedFlushNanos = nanos;
+    }
+
+    /**
+     * Saves player data and moves it from the RAM cache to the warm cache.
+     * Returns the number of changed stats written.
+     * Must be called ASYNCHRONOUSLY in a PlayerQuitEvent listener.
+     */
+    public int unloadPlayerStats(UUID uuid) {
+        warnIfPrimaryThread("unloadPlayerStats");
+        // Let a join load that is still running finish first, or it would re-add the record afterwards
+        PendingLoad pending = pendingLoads.get(uuid);
+        if (pending != null) pending.future().exceptionally(e -> null).join();
+
+        int rows;
+        if (syncing) {
+            // Keeps absolute values of one player committing in the order they were taken
+            synchronized (flushLock) {
+                rows = savePlayerStats(uuid);
+            }
+        } else {
+            rows = savePlayerStats(uuid);
+        }
+
+        // Failed or changed again while saving: the flusher saves it and unloads it afterwards
+        if (dirtyPlayers.contains(uuid)) return rows;
+
+        evict(uuid);
+        return rows;
+    }
+
+    /**
+     * Moves a record from the RAM cache to the warm cache. It's in the warm cache first,
+     * so a remote change always finds it in one of them.
+     */
+    private void evict(UUID uuid) {
+        PlayerStats stats = statsCache.get(uuid);
+        if (stats == null) return;
+        warmCache.put(stats);
+        statsCache.remove(uuid, stats);
+    }
+
+    /**
+     * Replaces the change log with another way of telling servers about each other's changes, e.g. a message
+     * broker. Takes effect at once when sync is enabled and is kept across reloads; the transport is closed
+     * with the plugin. Can be called synchronously.
+     */
+    public synchronized void setSyncTransport(SyncTransport transport) {
+        SyncTransport previous = syncTransport;
+        customTransport = transport;
+        if (!syncing) return;
+
+        syncTransport = transport;
+        if (previous != null) previous.close();
+        transport.start(syncReceiver);
+    }
+
+    /**
+     * Number of changes saved by other servers that were applied to this server's records and leaderboards.
+     */
+    public long getRemoteChangesApplied() {
+        return remoteChangesApplied.get();
+    }
+
+    /**
+     * Number of records re-read from the database because a remote change couldn't be applied to them.
+     */
+    public long getRecordsReread() {
+        return recordsReread.get();
+    }
+
+    /**
+     * Number of stat rows written by the last saveDirtyStats() run.
+     */
+    public int getLastFlushRows() {
+        return lastFlushRows;
+    }
+
+    /**
+     * Number of stat rows written by saveDirtyStats() since the plugin was enabled.
+     */
+    public long getTotalRowsWritten() {
+        return totalRowsWritten.get();
+    }
+
+
+
+    /**
+     * Returns the stat_id of a stat, or -1 if it doesn't exist.
+     * Resolved ids stay valid until {@link #getDefinitionsVersion()} changes.
+     */
+    public int getStatId(String statName) {
+        Integer statId = statNameToId.get(statName);
+        return statId != null ? statId : -1;
+    }
+
+    /**
+     * Returns the name of a stat by its stat_id, or null if it doesn't exist.
+     */
+    public String getStatName(int statId) {
+        return statIdToName.get(statId);
+    }
+
+    public int getDefinitionsVersion() {
+        return definitionsVersion;
+    }
+
+    /**
+     * Gets a player's stat value from the RAM cache by a stat_id from {@link #getStatId}, 0.0 while they're loading.
+     * Can be called synchronously by PAPI.
+     */
+    public double getStat(int statId, UUID uuid) {
+        PlayerStats stats = statsCache.get(uuid);
+        return stats != null ? stats.get(statId) : 0.0;
+    }
+
+    /**
+     * Gets a player's stat value from the RAM cache, 0.0 while they're loading.
+     * Can be called synchronously by PAPI!!!!
+     */
+    public double getStat(String statName, UUID uuid) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) {
+
+            return 0.0;
+        }
+
+        PlayerStats stats = statsCache.get(uuid);
+        return stats != null ? stats.get(statId) : 0.0;
+    }
+
+    /**
+     * Gets a player's stat value from the RAM cache or DB.
+     * Offline players are read with all of their stats at once and kept in the warm cache,
+     * so later lookups of any of their stats, including ones they don't have, skip the database.
+     * Must be Async
+     */
+    public double getStatAsync(String statName, UUID uuid) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return 0.0;
+
+        PlayerStats stats = readableRecord(uuid);
+        return stats != null ? stats.get(statId) : 0.0;
+    }
+
+    /**
+     * Gets all of a player's stats by name from the RAM cache or DB, stats without a value included as 0.0.
+     * Must be Async
+     */
+    public Map<String, Double> getAllStats(UUID uuid) {
+        PlayerStats stats = readableRecord(uuid);
+
+        Map<String, Double> values = new HashMap<>();
+        statNameToId.forEach((statName, statId) -> values.put(statName, stats != null ? stats.get(statId) : 0.0));
+        return values;
+    }
+
+    /**
+     * True if the player's stats are in the RAM cache, so reads return their real values.
+     * Can be called synchronously.
+     */
+    public boolean isLoaded(UUID uuid) {
+        return statsCache.containsKey(uuid);
+    }
+
+    /**
+     * Finds a record to read from: cached, being loaded, warm, or read from the database. Null if reading failed.
+     */
+    private PlayerStats readableRecord(UUID uuid) {
+        PlayerStats stats = statsCache.get(uuid);
+        if (stats != null) return stats;
+
+        // Wait for a running load instead of querying the same rows a second time
+        if (pendingLoads.containsKey(uuid)) return awaitLoaded(uuid);
+
+        stats = warmCache.peek(uuid);
+        if (stats != null) return stats;
+
+        warnIfPrimaryThread("Reading stats of offline player " + uuid);
+        return readOfflinePlayer(uuid);
+    }
+
+    /**
+     * Reads all of an offline player's stats into a record and adds it to the warm cache.
+     * A player without any rows gets an empty record, so they aren't queried again either.
+     */
+    private PlayerStats readOfflinePlayer(UUID uuid) {
+        PlayerStats stats = newRecord(uuid);
+        try {
+            readPlayerStats(Map.of(uuid, stats));
+        } catch (SQLException e) {
+            logger.error("Database error while getting stat offline", e);
+            return null;
+        }
+
+        // Writes always go through a loaded record, the warm copy must never shadow one
+        if (!statsCache.containsKey(uuid) && !pendingLoads.containsKey(uuid)) {
+            warmCache.putIfAbsent(stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Sets a player's stat value and marks the player as 'dirty'.
+     * If the player isn't loaded yet the value is buffered and applied once they are.
+     * Can be called synchronously from any thread (events, commands).
+     */
+    public void setStat(String statName, UUID uuid, double value) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return;
+
+        // KOREKCE: Zajištění, že hodnota nikdy neklesne pod nulu
+        double finalValue = Math.max(0, value);
+
+        PlayerStats stats = cachedOrBuffer(uuid, pending -> pending.set(statId, finalValue));
+        if (stats == null) return;
+
+        double previous = stats.getAndSet(statId, finalValue);
+        changed(stats, statId, WriteAheadLog.SET, finalValue - previous);
+    }
+
+    /**
+     * Increments a player's stat value and marks the player as 'dirty'.
+     * Safe to call from many threads at once, no increment is ever lost.
+     * If the player isn't loaded yet the amount is buffered and added to their stored value once they are.
+     * Can be called synchronously from any thread (events, commands).
+     */
+    public void addStat(String statName, UUID uuid, double amount) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return;
+
+        PlayerStats stats = cachedOrBuffer(uuid, pending -> pending.add(statId, amount));
+        if (stats == null) return;
+
+        double previous = stats.getAndAdd(statId, amount, 0);
+        changed(stats, statId, WriteAheadLog.ADD, Math.max(0, previous + amount) - previous);
+    }
+
+    /**
+     * Adds 1 to a player's stat and returns the new value.
+     * Same threading rules as {@link #getAndAdd}.
+     */
+    public double increment(String statName, UUID uuid) {
+        return getAndAdd(statName, uuid, 1) + 1;
+    }
+
+    /**
+     * Atomically adds {@code amount} to a player's stat and returns the previous value.
+     * The result is clamped at zero, same as {@link #setStat}.
+     * Waits for the player's stats to be loaded, so must be Async unless the player is online and loaded.
+     */
+    public double getAndAdd(String statName, UUID uuid, double amount) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return 0.0;
+
+        PlayerStats stats = awaitLoaded(uuid);
+        if (stats == null) return 0.0;
+
+        double previous = stats.getAndAdd(statId, amount, 0);
+
+        changed(stats, statId, WriteAheadLog.ADD, Math.max(0, previous + amount) - previous);
+        return previous;
+    }
+
+    /**
+     * Atomically sets a player's stat to {@code value} if it currently equals {@code expected}.
+     * Same threading rules as {@link #getAndAdd}.
+     */
+    public boolean compareAndSet(String statName, UUID uuid, double expected, double value) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return false;
+
+        PlayerStats stats = awaitLoaded(uuid);
+        double newValue = Math.max(0, value);
+        if (stats == null || !stats.compareAndSet(statId, expected, newValue)) return false;
+
+        changed(stats, statId, WriteAheadLog.COMPARE_AND_SET, newValue - expected);
+        return true;
+    }
+
+    /**
+     * Called after every write to a cached stat: queues the player for saving, adds the change of
+     * {@code delta} to the stat's period totals, logs the new value to the write-ahead log and moves
+     * them on the leaderboards.
+     */
+    private void changed(PlayerStats stats, int statId, byte op, double delta) {
+        // Before queueing, like the value itself, so a flush that drains the player also sees the new totals
+        StatWindow[] windows = statWindows.get(statId);
+        if (windows != null && delta != 0) addToPeriods(stats, statId, windows, delta);
+
+        dirtyPlayers.add(stats.getUuid());
+
+        // Logged after queueing, see flushDirtyStats
+        WriteAheadLog log = wal;
+        if (log != null) log.append(stats, statId, op);
+
+        // Only marked here, a leaderboard's lock would serialize every write to the stat
+        if (leaderboards.containsKey(statId) && stats.markRanked(statId)) rankQueue.add(stats);
+    }
+
+    /**
+     * Returns the player's cached record, or null after handing the write to their pending load.
+     * Offline players get loaded in the background, their record is unloaded again by saveDirtyStats.
+     */
+    private PlayerStats cachedOrBuffer(UUID uuid, Predicate<PendingLoad> buffer) {
+        while (true) {
+            PlayerStats stats = statsCache.get(uuid);
+            if (stats != null) return stats;
+
+            load(uuid);
+            PendingLoad pending = pendingLoads.get(uuid);
+            // Refused means the load was merged meanwhile, the record is in the cache now
+            if (pending != null && buffer.test(pending)) return null;
+        }
+    }
+
+    /**
+     * Checks if a statistic is defined.
+     * Can be called synchronously.
+     */
+    public boolean isStatRegistered(String statName) {
+        return statNameToId.containsKey(statName);
+    }
+
+    /**
+     * Creates a new statistic definition in the database and registers it in the cache.
+     * Must be called ASYNCHRONOUSLY to prevent lag.
+     */
+    public boolean createStat(String statName){
+        warnIfPrimaryThread("createStat");
+        synchronized (statNameToId) {
+            if (isStatRegistered(statName) || blockedByMigration("create a stat")) return false;
+
+            String sql = "INSERT INTO stats (stat_name) VALUES (?)";
+
+            try (Connection conn = writeDataSource.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+
+                ps.setString(1, statName);
+                ps.executeUpdate();
+
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    if (keys.next()) {
+                        int statId = keys.getInt(1);
+
+                        statNameToId.put(statName, statId);
+                        statIdToName.put(statId, statName);
+                        if (leaderboardsEnabled()) leaderboards.put(statId, new LeaderboardIndex());
+                        registerWindows(statId, statName);
+                        definitionsVersion++;
+
+                        logger.info("Created new stat: {} (ID: {})", statName, statId);
+                        return true;
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to create stat '{}'", statName, e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a statistic definition from the database and removes all associated player data.
+     * Must be called ASYNCHRONOUSLY to prevent server lag.
+     */
+    public boolean deleteStat(String statName) {
+        warnIfPrimaryThread("deleteStat");
+        synchronized (statNameToId) {
+            if (!isStatRegistered(statName)) {
+                return true;
+            }
+            if (blockedByMigration("delete a stat")) return false;
+            // Rows of the stat still in the old layout would be moved back after the delete
+            if (legacyMigration != null) {
+                logger.warn("Can't delete a stat while player_stats is being migrated to player ids, try again when it finished.");
+                return false;
+            }
+
+            Integer statId = statNameToId.get(statName);
+            if (statId == null) return false;
+
+
+            String sqlDeletePlayerStats = "DELETE FROM player_stats WHERE stat_id = ?";
+            String sqlDeletePeriods = "DELETE FROM player_stats_periods WHERE stat_id = ?";
+            String sqlDeleteStat = "DELETE FROM stats WHERE stat_id = ?";
+
+            try (Connection conn = writeDataSource.getConnection()) {
+                conn.setAutoCommit(false);
+
+                try (PreparedStatement psData = conn.prepareStatement(sqlDeletePlayerStats)) {
+                    psData.setInt(1, statId);
+                    psData.executeUpdate();
+                }
+
+                try (PreparedStatement psPeriods = conn.prepareStatement(sqlDeletePeriods)) {
+                    psPeriods.setInt(1, statId);
+                    psPeriods.executeUpdate();
+                }
+
+                try (PreparedStatement psStat = conn.prepareStatement(sqlDeleteStat)) {
+                    psStat.setInt(1, statId);
+                    psStat.executeUpdate();
                 }
 
                 conn.commit();
 
-                statNameToId.remove(statName);
-                statIdToName.remove(statId);
-                statsCache.remove(statName);
+                statNameToId.remove(statName);
+                statIdToName.remove(statId);
+                leaderboards.remove(statId);
+                statWindows.remove(statId);
+                periodLeaderboards.remove(statId);
+                periodsKept.remove(statId);
+                historyStats.remove(statId);
+                definitionsVersion++;
+                for (PlayerStats stats : statsCache.values()) {
+                    stats.remove(statId);
+                    stats.removePeriods(statId);
+                }
+                warmCache.forEach(stats -> {
+                    stats.remove(statId);
+                    stats.removePeriods(statId);
+                });
+
+                logger.info("Successfully deleted stat: {} (ID: {}) and all associated player data.", statName, statId);
+                return true;
+
+            } catch (SQLException e) {
+                logger.error("Failed to delete stat '{}'", statName, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Saves pending changes, then writes every stat value to {@code fileName} in the plugin's exports folder.
+     * A name ending in .gz is compressed. Continues an interrupted export of the same file.
+     * Must be called ASYNCHRONOUSLY.
+     */
+    public StatTransfer.Result exportStats(String fileName) throws IOException, SQLException {
+        Path file = exportFile(fileName);
+        requireLegacyMigrated();
+        if (!transferRunning.compareAndSet(false, true)) throw new IllegalStateException("Another export, import or migration is running");
+        try {
+            saveDirtyStats();
+            return new StatTransfer(dataSource, writeDataSource, dialect, logger).export(file);
+        } finally {
+            transferRunning.set(false);
+        }
+    }
+
+    /**
+     * Upserts the stat values of {@code fileName} in the plugin's exports folder, creating missing stats.
+     * Imported values replace those of loaded and warm records too, changes made to them during the import are
+     * lost; leaderboards take offline players' values as far as their seed limit allows.
+     * Continues an interrupted import of the same file.
+     * Must be called ASYNCHRONOUSLY.
+     */
+    public StatTransfer.Result importStats(String fileName) throws IOException, SQLException {
+        Path file = exportFile(fileName);
+        if (!Files.exists(file)) throw new NoSuchFileException(fileName);
+        // Imported values replace stored ones without going through the change log
+        if (syncing) throw new IllegalStateException("Importing isn't possible while sync is enabled, other servers wouldn't see the values");
+        if (!transferRunning.compareAndSet(false, true)) throw new IllegalStateException("Another export, import or migration is running");
+        try {
+            saveDirtyStats();
+            List<StatTransfer.Row> cached = new ArrayList<>();
+            int seedLimit = leaderboardSeedLimit();
+            StatTransfer.Result result = new StatTransfer(dataSource, writeDataSource, dialect, logger).importFile(file, name -> {
+                if (!isStatRegistered(name)) createStat(name);
+                return statNameToId.get(name);
+            }, row -> {
+                if (statsCache.containsKey(row.uuid()) || warmCache.findUnsaved(row.uuid()) != null) {
+                    cached.add(row);
+                    return;
+                }
+                LeaderboardIndex leaderboard = leaderboards.get(row.statId());
+                if (leaderboard != null) leaderboard.offer(row.uuid(), row.value(), seedLimit);
+            });
+
+            withSavesPaused(() -> {
+                for (StatTransfer.Row row : cached) {
+                    PlayerStats stats = statsCache.get(row.uuid());
+                    if (stats == null) stats = warmCache.findUnsaved(row.uuid());
+                    if (stats == null) continue;
+
+                    // Dirty, so a save that wrote the cached value over the imported row is undone by the next flush
+                    stats.set(row.statId(), row.value());
+                    changed(stats, row.statId(), WriteAheadLog.SET, 0);
+                }
+            });
+            return result;
+        } finally {
+            transferRunning.set(false);
+        }
+    }
+
+    /**
+     * Moves all data to the other backend, the one use-remote-database doesn't select, while the server keeps
+     * running: the tables are copied in parallel ranges while every save also goes to the new database, then
+     * every range is compared and copied again if its row counts or sums differ. With saves held back for a
+     * moment only the ranges saved to since are compared once more and the pools are swapped; use-remote-database
+     * is flipped in config.yml on the main thread afterwards.
+     * The new database must be empty. Returns the number of rows copied.
+     * Must be called ASYNCHRONOUSLY.
+     */
+    public long migrateBackend() throws SQLException {
+        boolean toRemote = !plugin.getConfig().getBoolean("use-remote-database");
+        if (syncing) throw new IllegalStateException("Migrating isn't possible while sync is enabled, disable it on every server first");
+        requireLegacyMigrated();
+        if (!transferRunning.compareAndSet(false, true)) throw new IllegalStateException("Another export, import or migration is running");
+
+        long start = System.nanoTime();
+        Pools target = openPools(toRemote, fileName);
+        BackendMigration copy = new BackendMigration(dataSource, target.read(), target.write(), target.dialect(),
+                plugin.getConfig().getInt("migration.threads", 2), logger);
+        boolean switched = false;
+        try {
+            createTables(target.write(), target.dialect());
+            copy.requireEmptyTarget();
+            logger.info("Migrating the database to {}...", toRemote ? "the remote database" : "SQLite");
+
+            // Saves start going to both databases before the copy reads anything, so none falls in between
+            withSavesPaused(() -> migration = copy);
+            copy.copy();
+
+            // One range at a time, saves only wait for two small checksum queries. Whatever is saved after
+            // a range was compared is tracked, the switch only has to look at those ranges again
+            copy.trackTouched();
+            AtomicInteger repaired = new AtomicInteger();
+            for (BackendMigration.Chunk chunk : copy.chunks()) {
+                withSavesPaused(() -> {
+                    if (copy.matches(chunk)) return;
+                    logger.warn("Migration: {} differs after the copy, copying it again.", chunk);
+                    copy.repair(chunk);
+                    repaired.incrementAndGet();
+                });
+            }
+
+            Pools old = new Pools(dataSource, writeDataSource, dialect);
+            long pausedAt = System.nanoTime();
+            withSavesPaused(() -> {
+                if (migration != copy) throw new IllegalStateException("The migration was aborted, check the console");
+                if (!copy.repairTouched()) throw new IllegalStateException("The new database still differs from the old one");
+                copy.syncSequences();
+
+                dataSource = target.read();
+                writeDataSource = target.write();
+                dialect = target.dialect();
+                playerIds = new PlayerIds(target.dialect());
+                migration = null;
+            });
+            switched = true;
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                plugin.getConfig().set("use-remote-database", toRemote);
+                plugin.saveConfig();
+            });
+
+            // Tasks that picked up the old pools just before the switch may still use them
+            Thread.ofVirtual().name("KetchupStats-ClosePools").start(() -> {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException ignored) {
+                }
+                old.close();
+            });
+
+            logger.info("Migration finished: copied {} rows in {} s ({} ranges copied again), saves paused {} ms for the switch, now using {}.",
+                    copy.getCopiedRows(), (System.nanoTime() - start) / 1_000_000_000, repaired.get(),
+                    (System.nanoTime() - pausedAt) / 1_000_000, toRemote ? "the remote database" : "SQLite");
+            return copy.getCopiedRows();
+        } finally {
+            if (!switched) {
+                withSavesPaused(() -> {
+                    if (migration == copy) migration = null;
+                });
+                target.close();
+            }
+            transferRunning.set(false);
+        }
+    }
+
+    /**
+     * Stops a running migration, the old database stays in use. Returns false if none was running.
+     */
+    public boolean cancelMigration() {
+        return abortMigration("it was cancelled", null);
+    }
+
+    public boolean isMigrating() {
+        return migration != null;
+    }
+
+    private boolean abortMigration(String reason, Exception cause) {
+        BackendMigration running = migration;
+        if (running == null) return false;
+
+        running.cancel();
+        migration = null;
+        if (cause != null) {
+            logger.error("Migration aborted, {}. The old database stays in use.", reason, cause);
+        } else {
+            logger.warn("Migration aborted, {}. The old database stays in use.", reason);
+        }
+        return true;
+    }
+
+    /**
+     * Runs {@code task} while no save is writing to the database.
+     */
+    private void withSavesPaused(SqlTask task) throws SQLException {
+        migrationLock.writeLock().lock();
+        try {
+            task.run();
+        } finally {
+            migrationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Logs and returns true if {@code operation} has to wait for a running migration,
+     * it writes outside the saves that are repeated on the new database.
+     */
+    private boolean blockedByMigration(String operation) {
+        if (migration == null) return false;
+        logger.warn("Can't {} while the database is being migrated, try again when it finished.", operation);
+        return true;
+    }
+
+    /**
+     * Throws while rows of the old uuid layout are left, a copy of player_stats would miss them.
+     */
+    private void requireLegacyMigrated() {
+        if (legacyMigration != null) throw new IllegalStateException("player_stats is still being migrated to player ids, try again when it finished");
+    }
+
+    /**
+     * Files in the exports folder, for tab completion.
+     */
+    public List<String> getExportFiles() {
+        List<String> names = new ArrayList<>();
+        File[] files = new File(plugin.getDataFolder(), "exports").listFiles();
+        if (files == null) return names;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && !name.endsWith(".progress") && !name.endsWith(".tmp")) names.add(name);
+        }
+        return names;
+    }
 
-                logger.info("Successfully deleted stat: {} (ID: {}) and all associated player data.", statName, statId);
-                return true;
+    private Path exportFile(String fileName) {
+        Path folder = new File(plugin.getDataFolder(), "exports").toPath().toAbsolutePath().normalize();
+        Path file = folder.resolve(fileName).normalize();
+        // Only plain names, an export must never overwrite anything outside the folder
+        if (!file.getParent().equals(folder)) throw new IllegalArgumentException("Invalid file name: " + fileName);
+        return file;
+    }
+
+    /**
+     * Provides a read-only statName -> (uuid -> value) view of the entire stats cache.
+     * Used mainly by external leaderboard plugins (AJLeaderboards) to read all player data.
+     */
+    public Map<String, Map<UUID, Double>> getStatsCache() {
+
+        return statsCacheView;
+    }
+
+    private boolean leaderboardsEnabled() {
+        return plugin.getConfig().getBoolean("leaderboards.enabled", false);
+    }
+
+    /**
+     * Players loaded into each leaderboard on startup, 0 for all of them.
+     */
+    private int leaderboardSeedLimit() {
+        return Math.max(0, plugin.getConfig().getInt("leaderboards.seed-limit", 10_000));
+    }
+
+    /**
+     * Fills the leaderboards with the best stored values, including offline players; with a seed limit only the top
+     * players of each stat are kept, everyone else joins a leaderboard once they are loaded.
+     * Runs once per (re)initialization on its own thread; live updates that happen meanwhile win over the seed.
+     */
+    private void seedLeaderboards() {
+        if (leaderboards.isEmpty()) return;
+
+        Thread seeder = new Thread(() -> {
+            long start = System.nanoTime();
+            long rows = 0;
+            int limit = leaderboardSeedLimit();
+            // Lowest value on top, so the heap drops the worst entry once it's over the limit
+            Map<Integer, PriorityQueue<LeaderboardEntry>> best = new HashMap<>();
+            String sql = "SELECT p.uuid, ps.stat_id, ps.value FROM player_stats ps JOIN players p ON p.player_id = ps.player_id";
+
+            try (Connection conn = dataSource.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+
+                ps.setFetchSize(10_000);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        int statId = rs.getInt("stat_id");
+                        LeaderboardIndex leaderboard = leaderboards.get(statId);
+                        if (leaderboard == null) continue;
+
+                        if (limit == 0) {
+                            leaderboard.seed(UuidBytes.fromBytes(rs.getBytes("uuid")), rs.getDouble("value"));
+                            rows++;
+                            continue;
+                        }
+                        PriorityQueue<LeaderboardEntry> heap = best.computeIfAbsent(statId,
+                                id -> new PriorityQueue<>(Comparator.comparingDouble(LeaderboardEntry::value)));
+                        double value = rs.getDouble("value");
+                        if (heap.size() == limit && value <= heap.peek().value()) continue;
+
+                        heap.add(new LeaderboardEntry(UuidBytes.fromBytes(rs.getBytes("uuid")), value));
+                        if (heap.size() > limit) heap.poll();
+                    }
+                }
+                for (Map.Entry<Integer, PriorityQueue<LeaderboardEntry>> entry : best.entrySet()) {
+                    LeaderboardIndex leaderboard = leaderboards.get(entry.getKey());
+                    if (leaderboard == null) continue;
 
+                    for (LeaderboardEntry seed : entry.getValue()) {
+                        leaderboard.seed(seed.uuid(), seed.value());
+                        rows++;
+                    }
+                }
+                logger.info("Loaded {} leaderboard entries in {} ms.", rows, (System.nanoTime() - start) / 1_000_000);
             } catch (SQLException e) {
-                logger.error("Failed to delete stat '{}'", statName, e);
-                return false;
+                logger.error("Could not load leaderboards", e);
+            }
+            seedPeriodLeaderboards(limit);
+        }, "KetchupStats-Leaderboards");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    private void seedPeriodLeaderboards(int limit) {
+        String sql = "SELECT p.uuid, pp.value FROM player_stats_periods pp JOIN players p ON p.player_id = pp.player_id " +
+                "WHERE pp.stat_id = ? AND pp.period_type = ? AND pp.period = ?" +
+                (limit > 0 ? " ORDER BY pp.value DESC LIMIT " + limit : "");
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            for (Map.Entry<Integer, PeriodBoard[]> entry : periodLeaderboards.entrySet()) {
+                for (PeriodBoard board : entry.getValue()) {
+                    if (board == null) continue;
+
+                    ps.setInt(1, entry.getKey());
+                    ps.setInt(2, board.window().id());
+                    ps.setInt(3, board.period());
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            board.index().seed(UuidBytes.fromBytes(rs.getBytes("uuid")), rs.getDouble("value"));
+                        }
+                    }
+                }
             }
+        } catch (SQLException e) {
+            logger.error("Could not load period leaderboards", e);
         }
     }
 
     /**
-     * Provides an unmodifiable map of the entire stats cache.
-     * Used mainly by external leaderboard plugins (AJLeaderboards) to read all player data.
+     * Returns the best {@code limit} players of a stat (online and offline), highest first.
+     * Can be called synchronously.
      */
-    public Map<String, Map<UUID, Double>> getStatsCache() {
+    public List<LeaderboardEntry> getTop(String statName, int limit) {
+        Integer statId = statNameToId.get(statName);
+        LeaderboardIndex leaderboard = statId == null ? null : leaderboards.get(statId);
+        return leaderboard != null ? leaderboard.top(limit) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the player's 1-based leaderboard position for a stat, or 0 if they have no value.
+     * Can be called synchronously.
+     */
+    public int getRank(String statName, UUID uuid) {
+        Integer statId = statNameToId.get(statName);
+        LeaderboardIndex leaderboard = statId == null ? null : leaderboards.get(statId);
+        return leaderboard != null ? leaderboard.rank(uuid) : 0;
+    }
+
+    /**
+     * Returns the windows the stat keeps period totals for, empty if it has none.
+     */
+    public Set<StatWindow> getStatWindows(String statName) {
+        Integer statId = statNameToId.get(statName);
+        StatWindow[] windows = statId == null ? null : statWindows.get(statId);
+        return windows != null ? EnumSet.copyOf(Arrays.asList(windows)) : EnumSet.noneOf(StatWindow.class);
+    }
+
+    /**
+     * Gets a player's total of a stat in the current period of {@code window} from the RAM cache,
+     * 0.0 while they're loading or if the stat has no such window.
+     * Can be called synchronously.
+     */
+    public double getPeriodStat(String statName, UUID uuid, StatWindow window) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return 0.0;
+
+        PlayerStats stats = statsCache.get(uuid);
+        return stats != null ? stats.getPeriod(statId, window, periodClock.current(window)) : 0.0;
+    }
+
+    /**
+     * Like {@link #getPeriodStat}, reading offline players from the database.
+     * Must be Async
+     */
+    public double getPeriodStatAsync(String statName, UUID uuid, StatWindow window) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null) return 0.0;
+
+        PlayerStats stats = readableRecord(uuid);
+        return stats != null ? stats.getPeriod(statId, window, periodClock.current(window)) : 0.0;
+    }
+
+    /**
+     * Returns the best {@code limit} players of a stat in the current period of {@code window}, highest first.
+     * Can be called synchronously.
+     */
+    public List<LeaderboardEntry> getPeriodTop(String statName, StatWindow window, int limit) {
+        PeriodBoard board = currentBoard(statName, window);
+        return board != null ? board.index().top(limit) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the player's 1-based position in the current period of {@code window}, or 0 if they have no total.
+     * Can be called synchronously.
+     */
+    public int getPeriodRank(String statName, UUID uuid, StatWindow window) {
+        PeriodBoard board = currentBoard(statName, window);
+        return board != null ? board.index().rank(uuid) : 0;
+    }
+
+    /**
+     * Returns the best {@code limit} players of an earlier period, {@code periodsAgo} periods before the current one.
+     * Only the last windows.keep-periods periods are kept.
+     * Must be called ASYNCHRONOUSLY, it reads the database.
+     */
+    public List<LeaderboardEntry> getPastPeriodTop(String statName, StatWindow window, int periodsAgo, int limit) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null || !statWindows.containsKey(statId)) return Collections.emptyList();
+
+        // Periods still being written can have unsaved totals, read them from memory
+        if (periodsAgo <= 0) return getPeriodTop(statName, window, limit);
+
+        String sql = "SELECT p.uuid, pp.value FROM player_stats_periods pp JOIN players p ON p.player_id = pp.player_id " +
+                "WHERE pp.stat_id = ? AND pp.period_type = ? AND pp.period = ? ORDER BY pp.value DESC LIMIT ?";
+        List<LeaderboardEntry> top = new ArrayList<>();
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, statId);
+            ps.setInt(2, window.id());
+            ps.setInt(3, periodClock.current(window) - periodsAgo);
+            ps.setInt(4, Math.max(0, limit));
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    top.add(new LeaderboardEntry(UuidBytes.fromBytes(rs.getBytes("uuid")), rs.getDouble("value")));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to read the {} top of '{}' {} periods ago", window.key(), statName, periodsAgo, e);
+        }
+        return top;
+    }
+
+    /**
+     * Returns how much a player's stat changed per hour or per day ({@code tier} HOURLY or DAILY) between
+     * {@code from} and {@code to} (epoch millis, end exclusive), oldest first. A period counts whole if it
+     * overlaps the range, periods without changes are left out. Empty if the stat keeps no history.
+     * Must be called ASYNCHRONOUSLY, it reads the database.
+     */
+    public List<HistoryPoint> getHistory(String statName, UUID uuid, StatWindow tier, long from, long to) {
+        Integer statId = statNameToId.get(statName);
+        if (statId == null || !historyStats.contains(statId) || to <= from) return Collections.emptyList();
+        if (tier != StatWindow.HOURLY && tier != StatWindow.DAILY) return Collections.emptyList();
+
+        ZoneId zone = periodClock.getZone();
+        int first = tier.period(from, zone);
+        int last = tier.period(to - 1, zone);
+        TreeMap<Integer, Double> totals = new TreeMap<>();
+
+        // One range of the primary key: (player_id, stat_id, period_type, period)
+        String sql = "SELECT pp.period, pp.value FROM player_stats_periods pp JOIN players p ON p.player_id = pp.player_id " +
+                "WHERE p.uuid = ? AND pp.stat_id = ? AND pp.period_type = ? AND pp.period BETWEEN ? AND ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setBytes(1, UuidBytes.toBytes(uuid));
+            ps.setInt(2, statId);
+            ps.setInt(3, tier.id());
+            ps.setInt(4, first);
+            ps.setInt(5, last);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    totals.put(rs.getInt("period"), rs.getDouble("value"));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to read the {} history of '{}' for {}", tier.key(), statName, uuid, e);
+        }
+
+        // An online player's latest totals may not be saved yet, the record has them
+        PlayerStats stats = statsCache.get(uuid);
+        if (stats != null) {
+            int current = periodClock.current(tier);
+            for (int period = Math.max(first, current - 1); period <= Math.min(last, current); period++) {
+                double value = stats.getPeriod(statId, tier, period);
+                if (value != 0) totals.put(period, value);
+            }
+        }
+
+        List<HistoryPoint> points = new ArrayList<>(totals.size());
+        for (Map.Entry<Integer, Double> entry : totals.entrySet()) {
+            if (entry.getValue() != 0) points.add(new HistoryPoint(tier.start(entry.getKey(), zone), entry.getValue()));
+        }
+        return points;
+    }
+
+    /**
+     * How much a player's stat grew between {@code from} and {@code to} (epoch millis, end exclusive).
+     * Summed hour by hour while history.hourly-days still covers {@code from}, day by day before that,
+     * so the range is rounded out to whole hours or days. 0.0 if the stat keeps no history.
+     * Must be called ASYNCHRONOUSLY, it reads the database.
+     */
+    public double getHistorySum(String statName, UUID uuid, long from, long to) {
+        long hourlyDays = Math.max(1, plugin.getConfig().getInt("history.hourly-days", 7));
+        // The oldest hour kept is pruned first, leave it out
+        long hourlyFrom = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(hourlyDays) + TimeUnit.HOURS.toMillis(1);
+        StatWindow tier = from >= hourlyFrom ? StatWindow.HOURLY : StatWindow.DAILY;
+
+        double sum = 0;
+        for (HistoryPoint point : getHistory(statName, uuid, tier, from, to)) {
+            sum += point.value();
+        }
+        return sum;
+    }
+
+    /**
+     * Deletes period totals older than windows.keep-periods periods, or than the history's hourly-days and
+     * daily-days, in batches of PRUNE_BATCH rows with a commit after each, so the table is never locked for long.
+     * Must be called ASYNCHRONOUSLY.
+     */
+    public int prunePeriods() {
+        if (migration != null) return 0;
+        int deleted = 0;
+
+        for (Map.Entry<Integer, StatWindow[]> entry : statWindows.entrySet()) {
+            int[] kept = periodsKept.get(entry.getKey());
+            if (kept == null) continue;
+
+            for (StatWindow window : entry.getValue()) {
+                try {
+                    deleted += prunePeriods(entry.getKey(), window, periodClock.current(window) - kept[window.ordinal()]);
+                } catch (SQLException e) {
+                    logger.error("Failed to prune old {} totals of stat {}", window.key(), entry.getKey(), e);
+                }
+            }
+        }
+        if (deleted > 0) logger.info("Pruned {} old period totals.", deleted);
+        return deleted;
+    }
+
+    private int prunePeriods(int statId, StatWindow window, int before) throws SQLException {
+        String select = "SELECT player_id, period FROM player_stats_periods " +
+                "WHERE stat_id = ? AND period_type = ? AND period < ? LIMIT " + PRUNE_BATCH;
+        String delete = "DELETE FROM player_stats_periods WHERE player_id = ? AND stat_id = ? AND period_type = ? AND period = ?";
+        int deleted = 0;
+
+        while (true) {
+            try (Connection conn = writeDataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                int found = 0;
+
+                try (PreparedStatement ps = conn.prepareStatement(select);
+                     PreparedStatement del = conn.prepareStatement(delete)) {
+                    ps.setInt(1, statId);
+                    ps.setInt(2, window.id());
+                    ps.setInt(3, before);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            del.setInt(1, rs.getInt("player_id"));
+                            del.setInt(2, statId);
+                            del.setInt(3, window.id());
+                            del.setInt(4, rs.getInt("period"));
+                            del.addBatch();
+                            found++;
+                        }
+                    }
+                    if (found > 0) del.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+
+                deleted += found;
+                if (found < PRUNE_BATCH) return deleted;
+            }
+        }
+    }
+
+    /**
+     * Reads the stat's windows from windows.stats.<stat> and gives each its current period leaderboard.
+     * A stat with history also keeps hourly and daily totals, without leaderboards unless configured as windows.
+     */
+    private void registerWindows(int statId, String statName) {
+        EnumSet<StatWindow> windows = EnumSet.noneOf(StatWindow.class);
+        for (String name : plugin.getConfig().getStringList("windows.stats." + statName)) {
+            StatWindow window = StatWindow.fromName(name);
+            if (window != null) {
+                windows.add(window);
+            } else {
+                logger.warn("Unknown window '{}' for stat '{}', use hourly, daily, weekly or monthly", name, statName);
+            }
+        }
+
+        int[] kept = new int[StatWindow.values().length];
+        int keepPeriods = Math.max(1, plugin.getConfig().getInt("windows.keep-periods", 4));
+        for (StatWindow window : windows) {
+            kept[window.ordinal()] = keepPeriods;
+        }
+
+        boolean history = recordsHistory(statName);
+        if (windows.isEmpty() && !history) return;
+
+        if (history) {
+            historyStats.add(statId);
+            int hourly = Math.max(1, plugin.getConfig().getInt("history.hourly-days", 7)) * 24;
+            int daily = Math.max(1, plugin.getConfig().getInt("history.daily-days", 365));
+            kept[StatWindow.HOURLY.ordinal()] = Math.max(kept[StatWindow.HOURLY.ordinal()], hourly);
+            kept[StatWindow.DAILY.ordinal()] = Math.max(kept[StatWindow.DAILY.ordinal()], daily);
+        }
+        periodsKept.put(statId, kept);
+
+        if (leaderboardsEnabled() && !windows.isEmpty()) {
+            PeriodBoard[] boards = new PeriodBoard[StatWindow.values().length];
+            for (StatWindow window : windows) {
+                boards[window.ordinal()] = new PeriodBoard(window, periodClock.current(window), new LeaderboardIndex());
+            }
+            periodLeaderboards.put(statId, boards);
+        }
+
+        if (history) {
+            windows.add(StatWindow.HOURLY);
+            windows.add(StatWindow.DAILY);
+        }
+        statWindows.put(statId, windows.toArray(new StatWindow[0]));
+    }
+
+    private boolean recordsHistory(String statName) {
+        if (!plugin.getConfig().getBoolean("history.enabled", false)) return false;
+
+        List<String> stats = plugin.getConfig().getStringList("history.stats");
+        return stats.isEmpty() || stats.contains(statName);
+    }
+
+    /**
+     * A window moved on to a new period: every windowed stat starts an empty leaderboard for it.
+     * Player totals reset lazily on their next write, and the old totals are saved and pruned as usual.
+     */
+    private void rollover(StatWindow window, int period) {
+        boolean any = false;
+        for (Integer statId : periodLeaderboards.keySet()) {
+            PeriodBoard[] rolled = periodLeaderboards.computeIfPresent(statId, (id, boards) -> {
+                if (boards[window.ordinal()] == null) return boards;
+
+                PeriodBoard[] next = boards.clone();
+                next[window.ordinal()] = new PeriodBoard(window, period, new LeaderboardIndex());
+                return next;
+            });
+            any |= rolled != null && rolled[window.ordinal()] != null;
+        }
+        // The history rolls over every hour, only leaderboards are worth a line in the log
+        if (any) logger.info("New {} period started.", window.key());
+    }
+
+    private void addToPeriods(PlayerStats stats, int statId, StatWindow[] windows, double delta) {
+        PeriodBoard[] boards = periodLeaderboards.get(statId);
+        for (StatWindow window : windows) {
+            int period = periodClock.current(window);
+            stats.addToPeriod(statId, window, period, delta);
+
+            PeriodBoard board = boards != null ? boards[window.ordinal()] : null;
+            if (board != null && board.period() == period && stats.markRankedPeriod(statId, window)) rankQueue.add(stats);
+        }
+    }
+
+    /**
+     * Moves the players whose stats changed since the last call on the leaderboards. Writes only mark what
+     * changed, so they never wait for a leaderboard; placeholders and the API see the changes after this ran.
+     * Must be called ASYNCHRONOUSLY, from a repeating task.
+     */
+    public void updateLeaderboards() {
+        synchronized (rankLock) {
+            // Taken out first: a record marked again while it's folded in queues itself anew, for the next call
+            List<PlayerStats> queued = new ArrayList<>();
+            PlayerStats next;
+            while ((next = rankQueue.poll()) != null) {
+                queued.add(next);
+            }
+
+            for (PlayerStats stats : queued) {
+                for (int statId : stats.drainRanked()) {
+                    LeaderboardIndex leaderboard = leaderboards.get(statId);
+                    if (leaderboard != null) leaderboard.update(stats, statId);
+                }
+                for (PeriodValue total : stats.drainRankedPeriods()) {
+                    PeriodBoard[] boards = periodLeaderboards.get(total.statId());
+                    PeriodBoard board = boards != null ? boards[total.window().ordinal()] : null;
+                    if (board != null && board.period() == total.period()) {
+                        board.index().updatePeriod(stats, total.statId(), total.window(), total.period());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a freshly loaded record for the leaderboards, which don't have it if it wasn't among the seeded players.
+     */
+    private void queueRanked(PlayerStats stats) {
+        boolean queue = false;
+        for (int statId : leaderboards.keySet()) {
+            if (stats.has(statId)) queue |= stats.markRanked(statId);
+        }
+        if (queue) rankQueue.add(stats);
+    }
+
+    /**
+     * Applies changes other servers saved to the records and leaderboards here. Runs on the sync transport's thread.
+     * A record whose database read may already contain a change, or may have missed it, is re-read instead.
+     */
+    private void receiveChanges(List<SyncChange> changes, long visibleAfter, long visibleBefore) {
+        for (SyncChange change : changes) {
+            int statId = change.statId();
+            if (!statIdToName.containsKey(statId)) continue;
+
+            UUID uuid = change.uuid();
+            PlayerStats stats = statsCache.get(uuid);
+            if (stats == null) stats = warmCache.find(uuid);
+            LeaderboardIndex leaderboard = leaderboards.get(statId);
+            StatWindow[] windows = statWindows.get(statId);
+
+            if (stats == null) {
+                if (pendingLoads.containsKey(uuid)) {
+                    staleRecords.add(uuid);
+                    continue;
+                }
+                if (leaderboard != null) leaderboard.applyRemote(uuid, change.absolute(), change.value());
+                if (windows != null && !change.absolute()) applyRemoteToPeriodBoards(uuid, statId, windows, change.value());
+                remoteChangesApplied.incrementAndGet();
+                continue;
+            }
+
+            // Read after the change was visible: the record has it already
+            if (stats.getReadStart() > visibleBefore) continue;
+            if (change.absolute() || stats.getReadEnd() >= visibleAfter || !stats.applyRemote(statId, change.value())) {
+                staleRecords.add(uuid);
+                continue;
+            }
+
+            if (windows != null) {
+                PeriodBoard[] boards = periodLeaderboards.get(statId);
+                for (StatWindow window : windows) {
+                    int period = periodClock.current(window);
+                    stats.applyRemotePeriod(statId, window, period, change.value());
+
+                    PeriodBoard board = boards != null ? boards[window.ordinal()] : null;
+                    if (board != null && board.period() == period) board.index().updatePeriod(stats, statId, window, period);
+                }
+            }
+            if (leaderboard != null) leaderboard.update(stats, statId);
+            remoteChangesApplied.incrementAndGet();
+        }
+        refreshStaleRecords();
+    }
+
+    private void applyRemoteToPeriodBoards(UUID uuid, int statId, StatWindow[] windows, double delta) {
+        PeriodBoard[] boards = periodLeaderboards.get(statId);
+        if (boards == null) return;
+        for (StatWindow window : windows) {
+            PeriodBoard board = boards[window.ordinal()];
+            if (board != null && board.period() == periodClock.current(window)) board.index().applyRemote(uuid, false, delta);
+        }
+    }
+
+    /**
+     * Re-reads the records remote changes couldn't be applied to and rebases them on what the database holds.
+     * A record with a save in flight, or saved during the read, stays stale until the next poll.
+     */
+    private void refreshStaleRecords() {
+        if (staleRecords.isEmpty()) return;
+
+        Map<UUID, PlayerStats> cached = new HashMap<>();
+        Map<UUID, Long> marks = new HashMap<>();
+        for (UUID uuid : staleRecords) {
+            PlayerStats stats = statsCache.get(uuid);
+            if (stats == null) stats = warmCache.find(uuid);
+            if (stats == null) {
+                // Nothing cached to fix, a pending load reads the changes itself
+                if (!pendingLoads.containsKey(uuid)) staleRecords.remove(uuid);
+                continue;
+            }
+            long mark = stats.saveMark();
+            if (mark < 0) continue;
+            cached.put(uuid, stats);
+            marks.put(uuid, mark);
+        }
+        if (cached.isEmpty()) return;
+
+        StatWindow[] windows = StatWindow.values();
+        int[] currentPeriods = new int[windows.length];
+        for (StatWindow window : windows) {
+            currentPeriods[window.ordinal()] = periodClock.current(window);
+        }
+
+        List<UUID> uuids = new ArrayList<>(cached.keySet());
+        for (int from = 0; from < uuids.size(); from += 500) {
+            Map<UUID, PlayerStats> fresh = new HashMap<>();
+            for (UUID uuid : uuids.subList(from, Math.min(from + 500, uuids.size()))) {
+                fresh.put(uuid, newRecord(uuid));
+            }
+            try {
+                readPlayerStats(fresh);
+            } catch (SQLException e) {
+                logger.warn("Could not re-read {} players changed by another server, retrying on the next poll", fresh.size(), e);
+                return;
+            }
+
+            for (PlayerStats record : fresh.values()) {
+                PlayerStats stats = cached.get(record.getUuid());
+                if (!stats.rebase(marks.get(record.getUuid()), record, currentPeriods)) continue;
+                staleRecords.remove(record.getUuid());
+                recordsReread.incrementAndGet();
+                refreshLeaderboards(stats);
+            }
+        }
+    }
+
+    /**
+     * Re-positions a record on every leaderboard of the stats it has.
+     */
+    private void refreshLeaderboards(PlayerStats stats) {
+        for (Map.Entry<Integer, LeaderboardIndex> entry : leaderboards.entrySet()) {
+            int statId = entry.getKey();
+            if (stats.has(statId)) entry.getValue().update(stats, statId);
+
+            PeriodBoard[] boards = periodLeaderboards.get(statId);
+            if (boards == null) continue;
+            for (PeriodBoard board : boards) {
+                if (board != null && board.period() == periodClock.current(board.window())) {
+                    board.index().updatePeriod(stats, statId, board.window(), board.period());
+                }
+            }
+        }
+    }
+
+    private PeriodBoard currentBoard(String statName, StatWindow window) {
+        Integer statId = statNameToId.get(statName);
+        PeriodBoard[] boards = statId == null ? null : periodLeaderboards.get(statId);
+        if (boards == null) return null;
+
+        PeriodBoard board = boards[window.ordinal()];
+        if (board == null) return null;
+        // The clock only notices a new period on access, make sure a quiet server doesn't show yesterday's board
+        if (board.period() != periodClock.current(window)) board = periodLeaderboards.get(statId)[window.ordinal()];
+        return board;
+    }
+
+    private ZoneId periodZone() {
+        String zone = plugin.getConfig().getString("windows.timezone", "");
+        if (zone == null || zone.isBlank()) return ZoneId.systemDefault();
+        try {
+            return ZoneId.of(zone);
+        } catch (Exception e) {
+            logger.warn("Unknown time zone '{}' in windows.timezone, using the server's", zone);
+            return ZoneId.systemDefault();
+        }
+    }
+
+    /**
+     * Logs a stack trace when a blocking call runs on the server thread, so the caller can be found and fixed.
+     */
+    private void warnIfPrimaryThread(String operation) {
+        if (Bukkit.isPrimaryThread()) {
+            logger.warn("{} blocked the server thread, call it asynchronously", operation, new IllegalStateException("Blocking call on the server thread"));
+        }
+    }
+
+    private PlayerStats newRecord(UUID uuid) {
+        return new PlayerStats(uuid, dirtyCells, syncing);
+    }
+
+    /**
+     * A value to save: the all-time value of a stat, or with {@code period} set, a period total.
+     * With {@code delta} the value is added to the stored one instead.
+     */
+    private record DirtyRow(PlayerStats stats, int statId, double value, PeriodValue period, boolean delta) {
+
+        DirtyRow(PlayerStats stats, int statId, double value) {
+            this(stats, statId, value, null, false);
+        }
+    }
+
+    private record PeriodBoard(StatWindow window, int period, LeaderboardIndex index) {
+    }
+
+    /**
+     * The connection pools of one backend; read and write are the same pool except on SQLite.
+     */
+    private record Pools(HikariDataSource read, HikariDataSource write, SqlDialect dialect) {
+
+        void close() {
+            if (write != read) write.close();
+            read.close();
+        }
+    }
 
-        return Collections.unmodifiableMap(statsCache);
+    @FunctionalInterface
+    private interface SqlTask {
+        void run() throws SQLException;
     }
 
     public List<String> getAllStatNames() {
@@ -0,0 +1,358 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the stats tables from one backend to another while the server keeps using the first one.
+ * Tables are split into ranges of player ids (stat ids for the stats table) that are copied in parallel,
+ * one transaction per range, with ids kept as they are. Copies are insert-ignore: the owner repeats every
+ * save on the target while the copy runs, and a row saved that way is newer than the copied one.
+ * Ranges are compared by row count and sums of their numeric columns afterwards, and differing ones copied again.
+ */
+public final class BackendMigration {
+
+    private static final int CHUNK_IDS = 1000;
+    private static final int INSERT_BATCH = 1000;
+    // Sums of doubles can differ in the last bits when the databases add them up in another order
+    private static final double SUM_TOLERANCE = 1e-9;
+
+    private static final List<Table> TABLES = List.of(
+            new Table("stats", "stat_id", new String[]{"stat_id"}, new String[]{"stat_name"}, new String[]{"stat_id"}),
+            new Table("players", "player_id", new String[]{"player_id"}, new String[]{"uuid"}, new String[]{"player_id"}),
+            new Table("player_stats", "player_id", new String[]{"player_id", "stat_id"}, new String[]{"value"},
+                    new String[]{"player_id", "stat_id", "value"}),
+            new Table("player_stats_periods", "player_id", new String[]{"player_id", "stat_id", "period_type", "period"},
+                    new String[]{"value"}, new String[]{"player_id", "stat_id", "period_type", "period", "value"}));
+
+    private final DataSource source;
+    private final DataSource targetRead;
+    private final DataSource targetWrite;
+    private final SqlDialect targetDialect;
+    private final int threads;
+    private final Logger logger;
+
+    private final AtomicLong copiedRows = new AtomicLong();
+    // Players saves wrote to since trackTouched()
+    private final Set<Integer> touched = ConcurrentHashMap.newKeySet();
+    private volatile boolean tracking;
+    private volatile boolean cancelled;
+
+    /**
+     * @param threads how many ranges are copied at once
+     */
+    public BackendMigration(DataSource source, DataSource targetRead, DataSource targetWrite, SqlDialect targetDialect,
+                            int threads, Logger logger) {
+        this.source = source;
+        this.targetRead = targetRead;
+        this.targetWrite = targetWrite;
+        this.targetDialect = targetDialect;
+        this.threads = Math.max(1, threads);
+        this.logger = logger;
+    }
+
+    public DataSource getTargetWrite() {
+        return targetWrite;
+    }
+
+    public SqlDialect getTargetDialect() {
+        return targetDialect;
+    }
+
+    public long getCopiedRows() {
+        return copiedRows.get();
+    }
+
+    /**
+     * Makes {@link #copy} stop after the ranges that are being copied.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Throws IllegalStateException if the target already has stats, a migration never merges two datasets.
+     */
+    public void requireEmptyTarget() throws SQLException {
+        try (Connection conn = targetRead.getConnection();
+             Statement stmt = conn.createStatement()) {
+            for (Table table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table.name())) {
+                    if (rs.next() && rs.getLong(1) > 0) {
+                        throw new IllegalStateException("The new database already has data in " + table.name() + ", empty it first");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies every range of every table, as many at once as there are threads.
+     */
+    public void copy() throws SQLException {
+        List<Chunk> chunks = chunks();
+        long start = System.nanoTime();
+        AtomicInteger done = new AtomicInteger();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "KetchupStats-Migration-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                futures.add(pool.submit(() -> {
+                    if (cancelled) return null;
+                    copyChunk(chunk, false);
+
+                    int finished = done.incrementAndGet();
+                    if (finished % 100 == 0) {
+                        logger.info("Migration: copied {}/{} ranges, {} rows.", finished, chunks.size(), copiedRows.get());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sql) throw sql;
+            throw new SQLException("Copying a range failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (cancelled) throw new IllegalStateException("The migration was cancelled");
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        logger.info("Migration: copied {} rows in {} ranges in {} ms ({} rows/s).",
+                copiedRows.get(), chunks.size(), millis, copiedRows.get() * 1000 / millis);
+    }
+
+    /**
+     * Whether the range has the same row count and sums in both databases.
+     * Must run while nothing saves to either database, or a save between the two reads shows up as a difference.
+     */
+    public boolean matches(Chunk chunk) throws SQLException {
+        try (Connection from = source.getConnection();
+             Connection to = targetRead.getConnection()) {
+            return checksum(from, chunk).matches(checksum(to, chunk));
+        }
+    }
+
+    /**
+     * Replaces the range in the target with the source's rows. Must run while nothing saves to either database.
+     */
+    public void repair(Chunk chunk) throws SQLException {
+        copyChunk(chunk, true);
+    }
+
+    /**
+     * Starts remembering which ranges saves write to, for {@link #repairTouched}.
+     */
+    public void trackTouched() {
+        tracking = true;
+    }
+
+    /**
+     * Notes that a save repeated on the target wrote rows of the player.
+     */
+    public void touched(int playerId) {
+        if (tracking) touched.add(playerId);
+    }
+
+    /**
+     * Compares the rows of the players saves wrote to since {@link #trackTouched}, INSERT_BATCH players per query,
+     * and copies a differing player's rows again. Returns false if one still differs afterwards.
+     * Must run while nothing saves to either database.
+     */
+    public boolean repairTouched() throws SQLException {
+        List<Integer> players = new ArrayList<>(touched);
+        List<Chunk> differing = new ArrayList<>();
+        try (Connection from = source.getConnection();
+             Connection to = targetRead.getConnection()) {
+            for (Table table : TABLES) {
+                if (!table.rangeColumn().equals("player_id")) continue;
+
+                for (int i = 0; i < players.size(); i += INSERT_BATCH) {
+                    List<Integer> batch = players.subList(i, Math.min(players.size(), i + INSERT_BATCH));
+                    if (checksum(from, table, batch).matches(checksum(to, table, batch))) continue;
+
+                    for (int playerId : batch) {
+                        Chunk chunk = new Chunk(table, playerId, playerId + 1L);
+                        if (!checksum(from, chunk).matches(checksum(to, chunk))) differing.add(chunk);
+                    }
+                }
+            }
+        }
+
+        for (Chunk chunk : differing) {
+            logger.warn("Migration: {} changed since it was compared, copying it again.", chunk);
+            repair(chunk);
+            if (!matches(chunk)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the target's id sequences past the copied ids, where the database doesn't do that by itself.
+     */
+    public void syncSequences() throws SQLException {
+        try (Connection conn = targetWrite.getConnection();
+             Statement stmt = conn.createStatement()) {
+            for (Table table : TABLES.subList(0, 2)) {
+                long maxId;
+                try (ResultSet rs = stmt.executeQuery("SELECT MAX(" + table.rangeColumn() + ") FROM " + table.name())) {
+                    maxId = rs.next() ? rs.getLong(1) : 0;
+                }
+                String sql = targetDialect.syncIdSequence(table.name(), table.rangeColumn(), maxId);
+                if (sql != null) stmt.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * The ranges the tables are copied and compared in.
+     */
+    public List<Chunk> chunks() throws SQLException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (Connection conn = source.getConnection();
+             Statement stmt = conn.createStatement()) {
+            for (Table table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT MIN(" + table.rangeColumn() + "), MAX(" + table.rangeColumn() + ") FROM " + table.name())) {
+                    if (!rs.next()) continue;
+                    long min = rs.getLong(1);
+                    if (rs.wasNull()) continue;
+                    long max = rs.getLong(2);
+
+                    for (long from = min; from <= max; from += CHUNK_IDS) {
+                        chunks.add(new Chunk(table, from, from + CHUNK_IDS));
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Streams one range from the source into the target in a single target transaction,
+     * with {@code replace} deleting the target's rows of the range first.
+     */
+    private void copyChunk(Chunk chunk, boolean replace) throws SQLException {
+        Table table = chunk.table();
+        String columns = String.join(", ", table.keys()) + ", " + String.join(", ", table.values());
+        String select = "SELECT " + columns + " FROM " + table.name() + " WHERE " + table.rangeColumn() + " >= ? AND " + table.rangeColumn() + " < ?";
+        String insert = targetDialect.insertIgnore(table.name(), table.keys(), table.values());
+        int columnCount = table.keys().length + table.values().length;
+        long rows = 0;
+
+        try (Connection from = source.getConnection();
+             Connection to = targetWrite.getConnection()) {
+            to.setAutoCommit(false);
+            try (PreparedStatement read = from.prepareStatement(select);
+                 PreparedStatement write = to.prepareStatement(insert)) {
+                if (replace) {
+                    try (PreparedStatement delete = to.prepareStatement("DELETE FROM " + table.name() + " WHERE " + table.rangeColumn() + " >= ? AND " + table.rangeColumn() + " < ?")) {
+                        delete.setLong(1, chunk.from());
+                        delete.setLong(2, chunk.to());
+                        delete.executeUpdate();
+                    }
+                }
+
+                read.setLong(1, chunk.from());
+                read.setLong(2, chunk.to());
+                try (ResultSet rs = read.executeQuery()) {
+                    while (rs.next()) {
+                        for (int i = 1; i <= columnCount; i++) {
+                            write.setObject(i, rs.getObject(i));
+                        }
+                        write.addBatch();
+                        if (++rows % INSERT_BATCH == 0) write.executeBatch();
+                    }
+                }
+                if (rows % INSERT_BATCH != 0) write.executeBatch();
+                to.commit();
+            } catch (SQLException e) {
+                to.rollback();
+                throw e;
+            } finally {
+                to.setAutoCommit(true);
+            }
+        }
+        copiedRows.addAndGet(rows);
+    }
+
+    private static Checksum checksum(Connection conn, Chunk chunk) throws SQLException {
+        Table table = chunk.table();
+        return checksum(conn, table, table.rangeColumn() + " >= ? AND " + table.rangeColumn() + " < ?", List.of(chunk.from(), chunk.to()));
+    }
+
+    private static Checksum checksum(Connection conn, Table table, List<Integer> playerIds) throws SQLException {
+        return checksum(conn, table, table.rangeColumn() + " IN (" + PlayerIds.placeholders(playerIds.size()) + ")", playerIds);
+    }
+
+    private static Checksum checksum(Connection conn, Table table, String where, List<? extends Number> params) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT COUNT(*)");
+        for (String column : table.sums()) {
+            sql.append(", SUM(").append(column).append(")");
+        }
+        sql.append(" FROM ").append(table.name()).append(" WHERE ").append(where);
+
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                ps.setLong(i + 1, params.get(i).longValue());
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                double[] sums = new double[table.sums().length];
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] = rs.getDouble(i + 2);
+                }
+                return new Checksum(rs.getLong(1), sums);
+            }
+        }
+    }
+
+    private record Table(String name, String rangeColumn, String[] keys, String[] values, String[] sums) {
+    }
+
+    /**
+     * Rows of {@code table} whose range column is in [from, to).
+     */
+    public record Chunk(Table table, long from, long to) {
+
+        @Override
+        public String toString() {
+            return table.name() + " [" + from + ", " + to + ")";
+        }
+    }
+
+    private record Checksum(long rows, double[] sums) {
+
+        boolean matches(Checksum other) {
+            if (rows != other.rows) return false;
+            for (int i = 0; i < sums.length; i++) {
+                double a = sums[i];
+                double b = other.sums[i];
+                if (Math.abs(a - b) > SUM_TOLERANCE * Math.max(1, Math.max(Math.abs(a), Math.abs(b)))) return false;
+            }
+            return true;
+        }
+    }
+}
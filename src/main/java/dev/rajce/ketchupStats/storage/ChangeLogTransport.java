@@ -0,0 +1,288 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The default {@link SyncTransport}: every save also inserts its changes into a stat_changes table in the same
+ * transaction, and a thread reads the rows other servers added since its last poll.
+ * Ids are handed out before commit, so a transaction can commit after one with a higher id; ids skipped by a
+ * poll are remembered as gaps and asked for again until they show up or gap-timeout passes (a rollback leaves
+ * a gap forever). Rows older than the retention are deleted by every server, by id so no extra index is needed.
+ */
+public final class ChangeLogTransport implements SyncTransport {
+
+    private static final int POLL_LIMIT = 5000;
+    private static final int MAX_GAPS = 1000;
+    private static final int GAP_CHUNK = 500;
+    private static final long GAP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long PRUNE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final DataSource readSource;
+    private final DataSource writeSource;
+    private final String serverId;
+    private final long pollIntervalNanos;
+    private final long retentionNanos;
+    private final Logger logger;
+
+    private final String insert = "INSERT INTO stat_changes (server_id, uuid, stat_id, absolute, value) VALUES (?, ?, ?, ?, ?)";
+    // Only touched by the poll thread
+    private final Map<Long, Long> gaps = new LinkedHashMap<>();
+    private final ArrayDeque<long[]> cursorHistory = new ArrayDeque<>();
+    private long cursor;
+    private long lastPrune;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates the stat_changes table if needed.
+     *
+     * @param serverId  written with every change, so a server skips its own
+     * @param retentionMillis how long rows are kept; a server that can't poll for longer re-reads its players
+     */
+    public ChangeLogTransport(DataSource readSource, DataSource writeSource, SqlDialect dialect, String serverId,
+                              long pollIntervalMillis, long retentionMillis, Logger logger) throws SQLException {
+        this.readSource = readSource;
+        this.writeSource = writeSource;
+        this.serverId = serverId;
+        this.pollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(10, pollIntervalMillis));
+        this.retentionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, retentionMillis));
+        this.logger = logger;
+
+        try (Connection conn = writeSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS stat_changes (" +
+                    "change_id " + dialect.autoIncrementBigPrimaryKey() + "," +
+                    "server_id VARCHAR(64) NOT NULL," +
+                    "uuid " + dialect.uuidType() + " NOT NULL," +
+                    "stat_id INTEGER NOT NULL," +
+                    "absolute SMALLINT NOT NULL," +
+                    "value " + dialect.doubleType() + " NOT NULL" +
+                    ");");
+        }
+    }
+
+    @Override
+    public void publish(Connection conn, List<SyncChange> changes) throws SQLException {
+        if (changes.isEmpty()) return;
+
+        try (PreparedStatement ps = conn.prepareStatement(insert)) {
+            for (SyncChange change : changes) {
+                ps.setString(1, serverId);
+                ps.setBytes(2, UuidBytes.toBytes(change.uuid()));
+                ps.setInt(3, change.statId());
+                ps.setInt(4, change.absolute() ? 1 : 0);
+                ps.setDouble(5, change.value());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        running = true;
+        thread = new Thread(() -> run(receiver), "KetchupStats-Sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread == null) return;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(Receiver receiver) {
+        long visibleAfter = Long.MIN_VALUE;
+        long lastSuccess = System.nanoTime();
+        boolean failing = false;
+        boolean primed = false;
+
+        while (running) {
+            long pollStart = System.nanoTime();
+            try {
+                if (!primed) {
+                    prime();
+                    primed = true;
+                    visibleAfter = pollStart;
+                    // Players read before the cursor was set may have missed changes saved since
+                    receiver.resync();
+                    continue;
+                }
+
+                List<Row> rows = new ArrayList<>();
+                boolean truncated = readNew(rows);
+                readGaps(rows);
+                long pollEnd = System.nanoTime();
+
+                if (failing) {
+                    failing = false;
+                    if (pollStart - lastSuccess > retentionNanos) {
+                        // Rows may have been pruned meanwhile, only a full re-read is safe
+                        logger.warn("The stat change log was unreadable for longer than it keeps changes, re-reading every cached player.");
+                        gaps.clear();
+                        receiver.resync();
+                    } else {
+                        logger.info("Reading the stat change log works again.");
+                    }
+                }
+                lastSuccess = pollEnd;
+
+                List<SyncChange> changes = new ArrayList<>(rows.size());
+                for (Row row : rows) {
+                    if (!row.serverId().equals(serverId)) changes.add(row.change());
+                }
+                receiver.receive(changes, visibleAfter, pollEnd);
+
+                expireGaps(pollStart);
+                prune(pollEnd);
+                // A truncated poll didn't look at later ids, they may have been visible before it
+                if (truncated) continue;
+                visibleAfter = pollStart;
+            } catch (SQLException | RuntimeException e) {
+                if (!failing) logger.warn("Could not read the stat change log, other servers' changes arrive late", e);
+                failing = true;
+            }
+            LockSupport.parkNanos(pollIntervalNanos);
+        }
+    }
+
+    /**
+     * Starts after the newest row, remembering holes among the rows just before it as gaps.
+     */
+    private void prime() throws SQLException {
+        try (Connection conn = readSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(change_id) FROM stat_changes")) {
+            cursor = rs.next() ? rs.getLong(1) : 0;
+        }
+
+        long from = Math.max(0, cursor - MAX_GAPS);
+        long expected = from + 1;
+        try (Connection conn = readSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT change_id FROM stat_changes WHERE change_id > ? AND change_id <= ? ORDER BY change_id")) {
+            ps.setLong(1, from);
+            ps.setLong(2, cursor);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    addGaps(expected, id, System.nanoTime());
+                    expected = id + 1;
+                }
+            }
+        }
+        lastPrune = System.nanoTime();
+    }
+
+    /**
+     * Reads up to POLL_LIMIT rows after the cursor and advances it. Returns true if there may be more.
+     */
+    private boolean readNew(List<Row> rows) throws SQLException {
+        int count = 0;
+        long now = System.nanoTime();
+        try (Connection conn = readSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT change_id, server_id, uuid, stat_id, absolute, value FROM stat_changes " +
+                     "WHERE change_id > ? ORDER BY change_id LIMIT " + POLL_LIMIT)) {
+            ps.setLong(1, cursor);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Row row = row(rs);
+                    addGaps(cursor + 1, row.id(), now);
+                    cursor = row.id();
+                    rows.add(row);
+                    count++;
+                }
+            }
+        }
+        return count == POLL_LIMIT;
+    }
+
+    /**
+     * Reads the gaps that committed since the last poll and forgets them.
+     */
+    private void readGaps(List<Row> rows) throws SQLException {
+        if (gaps.isEmpty()) return;
+
+        List<Long> ids = new ArrayList<>(gaps.keySet());
+        List<Row> found = new ArrayList<>();
+        try (Connection conn = readSource.getConnection()) {
+            for (int from = 0; from < ids.size(); from += GAP_CHUNK) {
+                List<Long> chunk = ids.subList(from, Math.min(from + GAP_CHUNK, ids.size()));
+                try (PreparedStatement ps = conn.prepareStatement("SELECT change_id, server_id, uuid, stat_id, absolute, value FROM stat_changes " +
+                        "WHERE change_id IN (" + PlayerIds.placeholders(chunk.size()) + ")")) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        ps.setLong(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            found.add(row(rs));
+                        }
+                    }
+                }
+            }
+        }
+        for (Row row : found) {
+            gaps.remove(row.id());
+        }
+        rows.addAll(found);
+        rows.sort(Comparator.comparingLong(Row::id));
+    }
+
+    private void addGaps(long from, long to, long now) {
+        for (long id = from; id < to; id++) {
+            if (gaps.size() >= MAX_GAPS) {
+                Iterator<Long> oldest = gaps.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            gaps.put(id, now);
+        }
+    }
+
+    private void expireGaps(long now) {
+        gaps.values().removeIf(noticed -> now - noticed > GAP_TIMEOUT_NANOS);
+    }
+
+    /**
+     * Deletes the rows this server had read retention ago. Every server does it, the deletes are idempotent.
+     */
+    private void prune(long now) throws SQLException {
+        cursorHistory.addLast(new long[]{now, cursor});
+        if (now - lastPrune < PRUNE_INTERVAL_NANOS) return;
+        lastPrune = now;
+
+        long before = -1;
+        while (!cursorHistory.isEmpty() && now - cursorHistory.peekFirst()[0] > retentionNanos) {
+            before = cursorHistory.pollFirst()[1];
+        }
+        if (before <= 0) return;
+
+        try (Connection conn = writeSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM stat_changes WHERE change_id <= ?")) {
+            ps.setLong(1, before);
+            int deleted = ps.executeUpdate();
+            if (deleted > 0) logger.debug("Deleted {} old rows of the stat change log.", deleted);
+        }
+    }
+
+    private static Row row(ResultSet rs) throws SQLException {
+        return new Row(rs.getLong(1), rs.getString(2), new SyncChange(UuidBytes.fromBytes(rs.getBytes(3)),
+                rs.getInt(4), rs.getInt(5) != 0, rs.getDouble(6)));
+    }
+
+    private record Row(long id, String serverId, SyncChange change) {
+    }
+}
@@ -0,0 +1,176 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs database work on virtual threads, one per task, with as many tasks running at once as there are
+ * connections, so tasks queue here instead of inside the connection pool. Writes get their own permits when
+ * they have their own pool (SQLite's single writer), so queued writes never hold up reads.
+ * A task waiting for other work through {@link #await} gives its permit back meanwhile, so waiting tasks
+ * never starve the ones that would complete them.
+ * Tasks are named, which shows up in thread dumps and in the log when one fails.
+ */
+public final class DatabaseExecutor {
+
+    // The permits the current task holds
+    private static final ThreadLocal<Semaphore> PERMIT_HOLDER = new ThreadLocal<>();
+
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("KetchupStats-DB").factory());
+    private final Semaphore readPermits;
+    private final Semaphore writePermits;
+    private final Logger logger;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param readPermits  how many tasks may run at once, normally the size of the (reader) pool
+     * @param writePermits size of a separate writer pool, or 0 if writes share the read pool
+     */
+    public DatabaseExecutor(int readPermits, int writePermits, Logger logger) {
+        this.readPermits = new Semaphore(Math.max(1, readPermits), true);
+        this.writePermits = writePermits > 0 ? new Semaphore(writePermits, true) : this.readPermits;
+        this.logger = logger;
+    }
+
+    public CompletableFuture<Void> run(String name, Runnable task) {
+        return supply(name, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs {@code task} on its own virtual thread once a permit is free. The future fails with
+     * RejectedExecutionException after {@link #shutdown}.
+     */
+    public <T> CompletableFuture<T> supply(String name, Supplier<T> task) {
+        return submit(name, readPermits, task);
+    }
+
+    /**
+     * Like {@link #run}, for tasks that mainly write and so need the writer connection.
+     */
+    public CompletableFuture<Void> runWrite(String name, Runnable task) {
+        return submit(name, writePermits, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(String name, Semaphore permits, Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long submitted = System.nanoTime();
+        maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+
+        try {
+            executor.execute(() -> {
+                Thread.currentThread().setName("KetchupStats-DB-" + name);
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    queued.decrementAndGet();
+                    future.completeExceptionally(e);
+                    return;
+                }
+
+                queued.decrementAndGet();
+                running.incrementAndGet();
+                waitNanos.addAndGet(System.nanoTime() - submitted);
+                PERMIT_HOLDER.set(permits);
+                try {
+                    future.complete(task.get());
+                } catch (Throwable t) {
+                    logger.error("Database task '{}' failed", name, t);
+                    future.completeExceptionally(t);
+                } finally {
+                    PERMIT_HOLDER.remove();
+                    running.decrementAndGet();
+                    completed.incrementAndGet();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for {@code future}. Called from one of this executor's tasks, the task's permit is released
+     * while waiting and taken back afterwards.
+     */
+    public <T> T await(CompletableFuture<T> future) {
+        Semaphore permits = PERMIT_HOLDER.get();
+        if (future.isDone() || (permits != readPermits && permits != writePermits)) return future.join();
+
+        running.decrementAndGet();
+        permits.release();
+        try {
+            return future.join();
+        } finally {
+            permits.acquireUninterruptibly();
+            running.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for queued and running ones to finish.
+     * Returns false if they didn't within the timeout.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.warn("{} database tasks were still queued and {} running at shutdown", queued.get(), running.get());
+        return false;
+    }
+
+    /**
+     * Tasks waiting for a permit.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * Most tasks that were ever waiting at once.
+     */
+    public int getMaxQueued() {
+        return maxQueued.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Average time from submitting a task to it starting, in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        long done = completed.get();
+        return done == 0 ? 0 : waitNanos.get() / (double) done / 1_000_000;
+    }
+}
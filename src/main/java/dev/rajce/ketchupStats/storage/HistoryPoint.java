@@ -0,0 +1,7 @@
+package dev.rajce.ketchupStats.storage;
+
+/**
+ * How much a stat changed in one hour or day of its history, {@code start} in epoch milliseconds.
+ */
+public record HistoryPoint(long start, double value) {
+}
@@ -0,0 +1,9 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.UUID;
+
+/**
+ * One position of a stat leaderboard.
+ */
+public record LeaderboardEntry(UUID uuid, double value) {
+}
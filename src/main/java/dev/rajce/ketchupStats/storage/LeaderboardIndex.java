@@ -0,0 +1,225 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Every player's value of one stat, kept sorted (highest first) in an order-statistic treap.
+ * Updates, {@link #rank} and the start of {@link #top} are O(log n), nothing is ever scanned or re-sorted.
+ */
+public final class LeaderboardIndex {
+
+    private final Map<UUID, Node> nodes = new HashMap<>();
+    private Node root;
+
+    /**
+     * Re-positions the player using the record's current value. The value is read under the index lock,
+     * so whichever of several racing writers updates the index last also stores the latest value.
+     */
+    public synchronized void update(PlayerStats stats, int statId) {
+        put(stats.getUuid(), stats.get(statId));
+    }
+
+    /**
+     * Like {@link #update}, with the player's total of one period of the stat.
+     */
+    public synchronized void updatePeriod(PlayerStats stats, int statId, StatWindow window, int period) {
+        put(stats.getUuid(), stats.getPeriod(statId, window, period));
+    }
+
+    /**
+     * Adds a value read from the database, unless the player was already updated with a live value.
+     */
+    public synchronized void seed(UUID uuid, double value) {
+        if (!nodes.containsKey(uuid)) {
+            put(uuid, value);
+        }
+    }
+
+    /**
+     * Puts a value imported into the database. A player already on the leaderboard is moved, anyone else is only
+     * added while it holds fewer than {@code limit} players (0 for no limit) or if they rank above the last one.
+     */
+    public synchronized void offer(UUID uuid, double value, int limit) {
+        if (!nodes.containsKey(uuid) && limit > 0 && size(root) >= limit && value <= last().value) return;
+        put(uuid, value);
+    }
+
+    /**
+     * Applies a change another server saved for a player this server holds no record of:
+     * adds {@code value}, clamped at 0, or with {@code absolute} replaces the stored value.
+     */
+    public synchronized void applyRemote(UUID uuid, boolean absolute, double value) {
+        Node node = nodes.get(uuid);
+        put(uuid, absolute ? value : Math.max(0, (node != null ? node.value : 0) + value));
+    }
+
+    public synchronized void remove(UUID uuid) {
+        Node node = nodes.remove(uuid);
+        if (node != null) {
+            root = delete(root, node);
+        }
+    }
+
+    public synchronized int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns the 1-based position of the player, or 0 if the player isn't on the leaderboard.
+     */
+    public synchronized int rank(UUID uuid) {
+        Node node = nodes.get(uuid);
+        if (node == null) return 0;
+
+        int rank = 1;
+        Node current = root;
+        while (current != null) {
+            int cmp = compare(node, current);
+            if (cmp < 0) {
+                current = current.left;
+            } else if (cmp > 0) {
+                rank += size(current.left) + 1;
+                current = current.right;
+            } else {
+                return rank + size(current.left);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the first {@code limit} players, highest value first.
+     */
+    public synchronized List<LeaderboardEntry> top(int limit) {
+        List<LeaderboardEntry> result = new ArrayList<>(Math.min(limit, size(root)));
+        Deque<Node> stack = new ArrayDeque<>();
+        Node current = root;
+
+        while ((current != null || !stack.isEmpty()) && result.size() < limit) {
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+            current = stack.pop();
+            result.add(new LeaderboardEntry(current.uuid, current.value));
+            current = current.right;
+        }
+        return result;
+    }
+
+    private Node last() {
+        Node current = root;
+        while (current.right != null) {
+            current = current.right;
+        }
+        return current;
+    }
+
+    private void put(UUID uuid, double value) {
+        Node node = nodes.get(uuid);
+        if (node != null) {
+            if (node.value == value) return;
+            root = delete(root, node);
+            node.value = value;
+            node.left = null;
+            node.right = null;
+            node.size = 1;
+        } else {
+            node = new Node(uuid, value);
+            nodes.put(uuid, node);
+        }
+        root = insert(root, node);
+    }
+
+    private static Node insert(Node tree, Node node) {
+        if (tree == null) return node;
+
+        if (node.priority > tree.priority) {
+            Node[] parts = split(tree, node);
+            node.left = parts[0];
+            node.right = parts[1];
+            return update(node);
+        }
+        if (compare(node, tree) < 0) {
+            tree.left = insert(tree.left, node);
+        } else {
+            tree.right = insert(tree.right, node);
+        }
+        return update(tree);
+    }
+
+    private static Node delete(Node tree, Node node) {
+        if (tree == null) return null;
+
+        int cmp = compare(node, tree);
+        if (cmp == 0) return merge(tree.left, tree.right);
+        if (cmp < 0) {
+            tree.left = delete(tree.left, node);
+        } else {
+            tree.right = delete(tree.right, node);
+        }
+        return update(tree);
+    }
+
+    /**
+     * Splits the tree into the nodes ordered before {@code key} and the rest.
+     */
+    private static Node[] split(Node tree, Node key) {
+        if (tree == null) return new Node[2];
+
+        if (compare(tree, key) < 0) {
+            Node[] parts = split(tree.right, key);
+            tree.right = parts[0];
+            parts[0] = update(tree);
+            return parts;
+        }
+        Node[] parts = split(tree.left, key);
+        tree.left = parts[1];
+        parts[1] = update(tree);
+        return parts;
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    private static Node update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        return node;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Highest value first, ties broken by UUID so every player has exactly one position.
+     */
+    private static int compare(Node a, Node b) {
+        int cmp = Double.compare(b.value, a.value);
+        return cmp != 0 ? cmp : a.uuid.compareTo(b.uuid);
+    }
+
+    private static final class Node {
+        private final UUID uuid;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private double value;
+        private Node left;
+        private Node right;
+        private int size = 1;
+
+        private Node(UUID uuid, double value) {
+            this.uuid = uuid;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Dedicated thread that coalesces player loads. After the first queued UUID it waits up to the window
+ * for more, then hands the whole batch to one of a few loader threads, so a join storm costs one query
+ * per batch instead of one per player, with several batches running at once.
+ */
+public final class LoadBatcher {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<UUID> queue = new LinkedBlockingQueue<>();
+    private final Consumer<List<UUID>> loader;
+    private final Logger logger;
+    private final int batchSize;
+    private final long windowNanos;
+
+    private final Thread thread;
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+
+    /**
+     * @param batchSize    most UUIDs handed to the loader at once
+     * @param windowMillis how long to wait for more UUIDs after the first one
+     * @param threads      how many batches may be loaded at once
+     */
+    public LoadBatcher(Consumer<List<UUID>> loader, Logger logger, int batchSize, long windowMillis, int threads) {
+        this.loader = loader;
+        this.logger = logger;
+        this.batchSize = Math.max(1, batchSize);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+
+        this.thread = new Thread(this::run, "KetchupStats-Loader");
+        this.thread.setDaemon(true);
+
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread worker = new Thread(task, "KetchupStats-Loader-" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void submit(UUID uuid) {
+        queue.add(uuid);
+    }
+
+    /**
+     * Stops the threads after loading everything that is still queued.
+     */
+    public void stop() {
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            workers.shutdown();
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            List<UUID> batch = new ArrayList<>();
+            try {
+                UUID first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < batchSize) {
+                    long left = deadline - System.nanoTime();
+                    UUID next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            if (!batch.isEmpty()) workers.execute(() -> load(batch));
+        }
+
+        List<UUID> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        for (int from = 0; from < rest.size(); from += batchSize) {
+            List<UUID> batch = rest.subList(from, Math.min(from + batchSize, rest.size()));
+            workers.execute(() -> load(batch));
+        }
+    }
+
+    private void load(List<UUID> batch) {
+        try {
+            loader.accept(batch);
+        } catch (Exception e) {
+            logger.error("Failed to load a batch of {} players", batch.size(), e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A player's stats that are still being read from the database.
+ * Writes that arrive meanwhile are buffered here and merged into the record once it is loaded:
+ * additions on top of the stored value, sets replacing it.
+ */
+public final class PendingLoad {
+
+    private final CompletableFuture<PlayerStats> future = new CompletableFuture<>();
+    private final Map<Integer, BufferedWrite> writes = new HashMap<>();
+    private boolean merged;
+
+    public CompletableFuture<PlayerStats> future() {
+        return future;
+    }
+
+    /**
+     * Buffers an addition. Returns false if the load was already merged, the caller must then write to the record.
+     */
+    public synchronized boolean add(int statId, double amount) {
+        if (merged) return false;
+
+        BufferedWrite write = writes.computeIfAbsent(statId, id -> new BufferedWrite());
+        write.value += amount;
+        return true;
+    }
+
+    /**
+     * Buffers a set, replacing the stored value and earlier buffered writes.
+     * Returns false if the load was already merged, the caller must then write to the record.
+     */
+    public synchronized boolean set(int statId, double value) {
+        if (merged) return false;
+
+        BufferedWrite write = writes.computeIfAbsent(statId, id -> new BufferedWrite());
+        write.absolute = true;
+        write.value = value;
+        return true;
+    }
+
+    /**
+     * Applies the buffered writes to the freshly loaded record and runs {@code publish} with what changed
+     * before any later write can bypass the buffer. Values are clamped at {@code floor}. Returns what changed.
+     */
+    public synchronized Change[] merge(PlayerStats stats, double floor, Consumer<Change[]> publish) {
+        Change[] changed = new Change[writes.size()];
+        int i = 0;
+
+        for (Map.Entry<Integer, BufferedWrite> entry : writes.entrySet()) {
+            int statId = entry.getKey();
+            BufferedWrite write = entry.getValue();
+            double stored = stats.get(statId);
+            double value = Math.max(floor, (write.absolute ? 0 : stored) + write.value);
+
+            if (write.absolute) {
+                stats.set(statId, value);
+            } else {
+                // Added rather than set, so a record in delta mode saves it as a delta
+                stats.getAndAdd(statId, value - stored, floor);
+            }
+            changed[i++] = new Change(statId, value - stored);
+        }
+
+        writes.clear();
+        publish.accept(changed);
+        merged = true;
+        return changed;
+    }
+
+    /**
+     * Drops the buffered writes after a failed load and returns how many there were.
+     */
+    public synchronized int discard() {
+        int dropped = writes.size();
+        writes.clear();
+        merged = true;
+        return dropped;
+    }
+
+    /**
+     * A stat changed by a merge and by how much.
+     */
+    public record Change(int statId, double delta) {
+    }
+
+    private static final class BufferedWrite {
+        private boolean absolute;
+        private double value;
+    }
+}
@@ -0,0 +1,71 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The current period of every {@link StatWindow}. Reading it is a volatile read and a clock compare;
+ * the first read in a new hour advances the periods once and reports the windows that rolled over.
+ */
+public final class PeriodClock {
+
+    private final Clock clock;
+    private final ObjIntConsumer<StatWindow> onRollover;
+    private volatile State state;
+
+    /**
+     * @param onRollover called with every window whose period changed and its new period, on the thread that noticed it
+     */
+    public PeriodClock(ZoneId zone, ObjIntConsumer<StatWindow> onRollover) {
+        this(Clock.system(zone), onRollover);
+    }
+
+    PeriodClock(Clock clock, ObjIntConsumer<StatWindow> onRollover) {
+        this.clock = clock;
+        this.onRollover = onRollover;
+        this.state = state(clock.millis());
+    }
+
+    public int current(StatWindow window) {
+        State current = state;
+        if (clock.millis() >= current.nextRollover) current = advance();
+        return current.periods[window.ordinal()];
+    }
+
+    private synchronized State advance() {
+        State previous = state;
+        long now = clock.millis();
+        if (now < previous.nextRollover) return previous;
+
+        State next = state(now);
+        state = next;
+        for (StatWindow window : StatWindow.values()) {
+            int period = next.periods[window.ordinal()];
+            if (period != previous.periods[window.ordinal()]) onRollover.accept(window, period);
+        }
+        return next;
+    }
+
+    public ZoneId getZone() {
+        return clock.getZone();
+    }
+
+    private State state(long now) {
+        ZoneId zone = clock.getZone();
+
+        int[] periods = new int[StatWindow.values().length];
+        for (StatWindow window : StatWindow.values()) {
+            periods[window.ordinal()] = window.period(now, zone);
+        }
+        // Days, weeks and months roll over at the start of a local day, which may not be on a full hour
+        long nextHour = StatWindow.HOURLY.start(periods[StatWindow.HOURLY.ordinal()] + 1, zone);
+        long nextDay = LocalDate.ofInstant(Instant.ofEpochMilli(now), zone).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return new State(periods, Math.min(nextHour, nextDay));
+    }
+
+    private record State(int[] periods, long nextRollover) {
+    }
+}
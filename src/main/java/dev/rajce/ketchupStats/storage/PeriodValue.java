@@ -0,0 +1,7 @@
+package dev.rajce.ketchupStats.storage;
+
+/**
+ * A player's total of one stat in one period of a window.
+ */
+public record PeriodValue(int statId, StatWindow window, int period, double value) {
+}
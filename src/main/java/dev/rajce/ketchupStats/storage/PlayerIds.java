@@ -0,0 +1,61 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Maps player UUIDs to the integer player_id surrogate keys of the players table, creating missing rows.
+ */
+public final class PlayerIds {
+
+    private static final int LOOKUP_CHUNK = 500;
+
+    private final SqlDialect dialect;
+
+    public PlayerIds(SqlDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * Returns the player_id of every given UUID, inserting players that don't exist yet.
+     * Runs on the caller's connection and transaction.
+     */
+    public Map<UUID, Integer> resolve(Connection conn, Collection<UUID> uuids) throws SQLException {
+        Map<UUID, Integer> ids = new HashMap<>();
+        if (uuids.isEmpty()) return ids;
+
+        try (PreparedStatement ps = conn.prepareStatement(
+                dialect.insertIgnore("players", new String[]{"uuid"}, new String[0]))) {
+            for (UUID uuid : uuids) {
+                ps.setBytes(1, UuidBytes.toBytes(uuid));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        List<UUID> list = new ArrayList<>(uuids);
+        for (int from = 0; from < list.size(); from += LOOKUP_CHUNK) {
+            List<UUID> chunk = list.subList(from, Math.min(from + LOOKUP_CHUNK, list.size()));
+            String sql = "SELECT player_id, uuid FROM players WHERE uuid IN (" + placeholders(chunk.size()) + ")";
+
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setBytes(i + 1, UuidBytes.toBytes(chunk.get(i)));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        ids.put(UuidBytes.fromBytes(rs.getBytes("uuid")), rs.getInt("player_id"));
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    public static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
@@ -0,0 +1,757 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * All cached stat values of one player, stored as primitive doubles indexed by stat_id.
+ * Values live in fixed pages of 64 slots, so growing the page table never moves a value
+ * and a concurrent write can't be lost while a new stat is being added.
+ * Every page also keeps a dirty bitmask, so a save only writes the cells that changed,
+ * and a second one of the stats the leaderboards haven't seen yet.
+ * Stats with time windows also get one period cell per window, holding the total of the period it was last written in.
+ * <p>
+ * In delta mode, used when several servers share the database, every cell also remembers the value the database
+ * is known to hold plus what saves took from it. A save then writes how much the cell changed instead of its value,
+ * unless the stat was set, and changes other servers saved are added to both the value and that base.
+ */
+public final class PlayerStats {
+
+    private static final int PAGE_SHIFT = 6;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    private final UUID uuid;
+    private final AtomicInteger dirtyCells;
+    private final boolean deltas;
+    private volatile int playerId;
+    private volatile Page[] pages = new Page[1];
+    private volatile PeriodCell[] periodCells = new PeriodCell[0];
+    // Dirty totals of periods that ended before they were saved, guarded by this.
+    // A cell's lock may be held while taking this one, never the other way round.
+    private List<PeriodValue> endedPeriods;
+    // Set while the record waits for the leaderboards, see markRanked
+    private final AtomicBoolean rankQueued = new AtomicBoolean();
+
+    // Delta mode: guards the bases, and orders takes by saves against remote changes and rebases
+    private final Object syncLock = new Object();
+    // Taken changes not yet committed or handed back, absolute ones among them, and takes ever made; guarded by syncLock
+    private int unsettled;
+    private int unsettledAbsolute;
+    private long takes;
+    // System.nanoTime() bounds of the database read the bases come from
+    private volatile long readStart = Long.MIN_VALUE;
+    private volatile long readEnd = Long.MIN_VALUE;
+
+    /**
+     * @param dirtyCells counter shared by all records, tracks how many cells are waiting to be saved
+     */
+    public PlayerStats(UUID uuid, AtomicInteger dirtyCells) {
+        this(uuid, dirtyCells, false);
+    }
+
+    /**
+     * @param deltas whether saves write changes as deltas, see the class comment
+     */
+    public PlayerStats(UUID uuid, AtomicInteger dirtyCells, boolean deltas) {
+        this.uuid = uuid;
+        this.dirtyCells = dirtyCells;
+        this.deltas = deltas;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    /**
+     * The player's id in the players table, or 0 if the player has no row there yet.
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    public void setPlayerId(int playerId) {
+        this.playerId = playerId;
+    }
+
+    public boolean tracksDeltas() {
+        return deltas;
+    }
+
+    /**
+     * When the database read this record's values come from started, in {@link System#nanoTime()}.
+     */
+    public long getReadStart() {
+        return readStart;
+    }
+
+    /**
+     * When that read finished: changes that became visible in the database after it aren't in the values.
+     */
+    public long getReadEnd() {
+        return readEnd;
+    }
+
+    public void setReadWindow(long start, long end) {
+        this.readStart = start;
+        this.readEnd = end;
+    }
+
+    /**
+     * Returns true if this player has a value for the stat (loaded from the database or set since).
+     */
+    public boolean has(int statId) {
+        Page page = page(statId);
+        return page != null && (page.present.get() & bit(statId)) != 0;
+    }
+
+    /**
+     * Gets the value of a stat, or 0.0 if the player has no value for it.
+     */
+    public double get(int statId) {
+        Page page = page(statId);
+        if (page == null) return 0.0;
+        return (double) VALUES.getVolatile(page.values, statId & PAGE_MASK);
+    }
+
+    public void set(int statId, double value) {
+        Page page = pageForWrite(statId);
+        VALUES.setVolatile(page.values, statId & PAGE_MASK, value);
+        setBit(page.present, bit(statId));
+        markAssigned(page, statId);
+        markDirty(page, statId);
+    }
+
+    /**
+     * Puts a value read from the database, without marking it dirty.
+     */
+    public void load(int statId, double value) {
+        Page page = pageForWrite(statId);
+        VALUES.setVolatile(page.values, statId & PAGE_MASK, value);
+        if (deltas) page.base[statId & PAGE_MASK] = value;
+        setBit(page.present, bit(statId));
+    }
+
+    /**
+     * Atomically adds to a stat and returns the previous value.
+     * The result never drops below {@code floor}; positive deltas take a single VarHandle getAndAdd.
+     */
+    public double getAndAdd(int statId, double delta, double floor) {
+        Page page = pageForWrite(statId);
+        int slot = statId & PAGE_MASK;
+        double previous;
+        if (delta >= 0) {
+            previous = (double) VALUES.getAndAdd(page.values, slot, delta);
+        } else {
+            do {
+                previous = (double) VALUES.getVolatile(page.values, slot);
+            } while (!VALUES.compareAndSet(page.values, slot, previous, Math.max(floor, previous + delta)));
+        }
+        setBit(page.present, bit(statId));
+        markDirty(page, statId);
+        return previous;
+    }
+
+    /**
+     * Atomically sets a stat to {@code value} if it currently holds {@code expected}.
+     * Values are compared by their bit patterns, like {@link Double#equals}.
+     */
+    public boolean compareAndSet(int statId, double expected, double value) {
+        Page page = pageForWrite(statId);
+        if (!VALUES.compareAndSet(page.values, statId & PAGE_MASK, expected, value)) return false;
+        setBit(page.present, bit(statId));
+        markAssigned(page, statId);
+        markDirty(page, statId);
+        return true;
+    }
+
+    /**
+     * Atomically sets a stat and returns the previous value.
+     */
+    public double getAndSet(int statId, double value) {
+        Page page = pageForWrite(statId);
+        double previous = (double) VALUES.getAndSet(page.values, statId & PAGE_MASK, value);
+        setBit(page.present, bit(statId));
+        markAssigned(page, statId);
+        markDirty(page, statId);
+        return previous;
+    }
+
+    /**
+     * The player's total of the stat in {@code period}, 0.0 if nothing was recorded in it.
+     */
+    public double getPeriod(int statId, StatWindow window, int period) {
+        PeriodCell cell = periodCell(statId, window);
+        if (cell == null) return 0.0;
+        synchronized (cell) {
+            return cell.period == period ? cell.value : 0.0;
+        }
+    }
+
+    /**
+     * Adds to the total of {@code period}, never dropping below zero. A total of an older period is
+     * replaced by a fresh one, which is how a window rolls over without touching other players.
+     */
+    public void addToPeriod(int statId, StatWindow window, int period, double delta) {
+        PeriodCell cell = periodCellForWrite(statId, window);
+        synchronized (cell) {
+            if (cell.period != period) {
+                // Written by a caller that read the clock just before a rollover, count it in the new period
+                if (cell.period > period) period = cell.period;
+            }
+            if (cell.period != period) {
+                if (cell.dirty) endPeriod(new PeriodValue(statId, window, cell.period, cell.value - cell.base));
+                cell.period = period;
+                cell.value = 0;
+                cell.base = 0;
+            }
+            cell.value = Math.max(0, cell.value + delta);
+            if (!cell.dirty) {
+                cell.dirty = true;
+                dirtyCells.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Puts a period total read from the database, without marking it dirty.
+     */
+    public void loadPeriod(int statId, StatWindow window, int period, double value) {
+        PeriodCell cell = periodCellForWrite(statId, window);
+        synchronized (cell) {
+            if (cell.period <= period && !cell.dirty) {
+                cell.period = period;
+                cell.value = value;
+                if (deltas) cell.base = value;
+            }
+        }
+    }
+
+    /**
+     * Clears and returns every dirty period total, including those of periods that have since ended.
+     * In delta mode the values are how much the totals grew since the last drain, and they count as taken
+     * like {@link #takeChange}.
+     */
+    public List<PeriodValue> drainDirtyPeriods() {
+        PeriodCell[] cells = periodCells;
+        if (cells.length == 0) return List.of();
+        if (!deltas) return drainPeriods(cells);
+
+        synchronized (syncLock) {
+            List<PeriodValue> dirty = drainPeriods(cells);
+            unsettled += dirty.size();
+            takes++;
+            return dirty;
+        }
+    }
+
+    private List<PeriodValue> drainPeriods(PeriodCell[] cells) {
+        List<PeriodValue> dirty = new ArrayList<>();
+        synchronized (this) {
+            if (endedPeriods != null) {
+                dirty.addAll(endedPeriods);
+                endedPeriods = null;
+            }
+        }
+        for (PeriodCell cell : cells) {
+            synchronized (cell) {
+                if (!cell.dirty) continue;
+                cell.dirty = false;
+                dirtyCells.decrementAndGet();
+                // The base stays 0 outside delta mode, so this is the total itself
+                dirty.add(new PeriodValue(cell.statId, cell.window, cell.period, cell.value - cell.base));
+                if (deltas) cell.base = cell.value;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Marks a period total dirty again after a failed save, unless it was written since.
+     */
+    public void markPeriodDirty(PeriodValue value) {
+        PeriodCell cell = periodCell(value.statId(), value.window());
+        if (cell == null) {
+            settle(false);
+            return;
+        }
+        if (deltas) {
+            synchronized (syncLock) {
+                unsettled--;
+                if (markPeriodDirty(cell, value)) return;
+            }
+        } else if (markPeriodDirty(cell, value)) {
+            return;
+        }
+        if (value.period() < cellPeriod(cell)) endPeriod(value);
+    }
+
+    /**
+     * Marks the cell dirty if it still holds the value's period, in delta mode handing the delta back to it.
+     */
+    private boolean markPeriodDirty(PeriodCell cell, PeriodValue value) {
+        synchronized (cell) {
+            if (cell.period != value.period()) return false;
+            if (deltas) cell.base -= value.value();
+            if (!cell.dirty) {
+                cell.dirty = true;
+                dirtyCells.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops the period totals of a stat, e.g. after the stat itself was deleted.
+     */
+    public void removePeriods(int statId) {
+        for (PeriodCell cell : periodCells) {
+            if (cell.statId != statId) continue;
+            synchronized (cell) {
+                if (cell.dirty) dirtyCells.decrementAndGet();
+                cell.dirty = false;
+                cell.value = 0;
+                cell.base = 0;
+            }
+        }
+        synchronized (this) {
+            if (endedPeriods != null) endedPeriods.removeIf(value -> value.statId() == statId);
+        }
+    }
+
+    /**
+     * Drops the value of a stat, e.g. after the stat itself was deleted.
+     */
+    public void remove(int statId) {
+        Page page = page(statId);
+        if (page == null) return;
+        clearBit(page.present, bit(statId));
+        clearBit(page.assigned, bit(statId));
+        if (clearBit(page.dirty, bit(statId))) dirtyCells.decrementAndGet();
+        VALUES.setVolatile(page.values, statId & PAGE_MASK, 0.0);
+        if (deltas) page.base[statId & PAGE_MASK] = 0;
+    }
+
+    /**
+     * Returns true if any cell changed since the last {@link #drainDirty()}.
+     */
+    public boolean hasDirty() {
+        for (Page page : pages) {
+            if (page != null && page.dirty.get() != 0) return true;
+        }
+        for (PeriodCell cell : periodCells) {
+            synchronized (cell) {
+                if (cell.dirty) return true;
+            }
+        }
+        synchronized (this) {
+            return endedPeriods != null;
+        }
+    }
+
+    /**
+     * Clears and returns every dirty stat_id. The bits are cleared before the caller reads the values,
+     * so a write racing with a save is either included in it or marks the cell dirty again.
+     */
+    public int[] drainDirty() {
+        Page[] snapshot = pages;
+        int[] ids = new int[0];
+        int count = 0;
+        for (int p = 0; p < snapshot.length; p++) {
+            Page page = snapshot[p];
+            if (page == null || page.dirty.get() == 0) continue;
+
+            long bits = page.dirty.getAndSet(0);
+            dirtyCells.addAndGet(-Long.bitCount(bits));
+            if (count + Long.bitCount(bits) > ids.length) {
+                ids = Arrays.copyOf(ids, count + Long.bitCount(bits));
+            }
+            while (bits != 0) {
+                int slot = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                ids[count++] = (p << PAGE_SHIFT) | slot;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Notes that a stat with a leaderboard changed. Returns true if the caller has to queue the record for
+     * {@link #drainRanked}, once until the next drain. Both flags are read before they're written,
+     * so a hot counter that is already marked only reads memory here.
+     */
+    public boolean markRanked(int statId) {
+        setBit(pageForWrite(statId).ranked, bit(statId));
+        return !rankQueued.get() && rankQueued.compareAndSet(false, true);
+    }
+
+    /**
+     * Like {@link #markRanked}, for a period total with a leaderboard.
+     */
+    public boolean markRankedPeriod(int statId, StatWindow window) {
+        PeriodCell cell = periodCell(statId, window);
+        if (cell == null) return false;
+        synchronized (cell) {
+            cell.ranked = true;
+        }
+        return !rankQueued.get() && rankQueued.compareAndSet(false, true);
+    }
+
+    /**
+     * Returns and clears the stats marked by {@link #markRanked} since the last drain, and lets the record be
+     * queued again. Call {@link #drainRankedPeriods} after it; marks made meanwhile queue the record anew.
+     */
+    public int[] drainRanked() {
+        rankQueued.set(false);
+        Page[] snapshot = pages;
+        int[] ids = new int[0];
+        int count = 0;
+        for (int p = 0; p < snapshot.length; p++) {
+            Page page = snapshot[p];
+            if (page == null || page.ranked.get() == 0) continue;
+
+            long bits = page.ranked.getAndSet(0);
+            ids = Arrays.copyOf(ids, count + Long.bitCount(bits));
+            while (bits != 0) {
+                int slot = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                ids[count++] = (p << PAGE_SHIFT) | slot;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns and clears the period totals marked by {@link #markRankedPeriod}, with the period they're in.
+     */
+    public List<PeriodValue> drainRankedPeriods() {
+        List<PeriodValue> ranked = new ArrayList<>();
+        for (PeriodCell cell : periodCells) {
+            synchronized (cell) {
+                if (!cell.ranked) continue;
+                cell.ranked = false;
+                ranked.add(new PeriodValue(cell.statId, cell.window, cell.period, cell.value));
+            }
+        }
+        return ranked;
+    }
+
+    /**
+     * Delta mode: clears and returns whether the stat was set since the last save, rather than only added to,
+     * so the save has to write its value instead of a delta.
+     */
+    public boolean takeAssigned(int statId) {
+        Page page = page(statId);
+        return page != null && clearBit(page.assigned, bit(statId));
+    }
+
+    /**
+     * Delta mode: returns what a save has to write for the stat, its value if {@code absolute} or otherwise how much
+     * it changed since the last take, and counts that as saved so changes made meanwhile go into the next save.
+     * The save must {@link #settle} it once committed or hand it back with {@link #untake}.
+     */
+    public double takeChange(int statId, boolean absolute) {
+        Page page = pageForWrite(statId);
+        int slot = statId & PAGE_MASK;
+        synchronized (syncLock) {
+            double value = (double) VALUES.getVolatile(page.values, slot);
+            double delta = value - page.base[slot];
+            page.base[slot] = value;
+            unsettled++;
+            if (absolute) unsettledAbsolute++;
+            takes++;
+            return absolute ? value : delta;
+        }
+    }
+
+    /**
+     * Delta mode: a taken change, of a stat or a period total, was committed.
+     */
+    public void settle(boolean absolute) {
+        if (!deltas) return;
+        synchronized (syncLock) {
+            unsettled--;
+            if (absolute) unsettledAbsolute--;
+        }
+    }
+
+    /**
+     * Delta mode: hands back a change taken by a save that failed, and marks the stat dirty again.
+     */
+    public void untake(int statId, double change, boolean absolute) {
+        Page page = pageForWrite(statId);
+        synchronized (syncLock) {
+            unsettled--;
+            if (absolute) {
+                unsettledAbsolute--;
+                setBit(page.assigned, bit(statId));
+            } else {
+                page.base[statId & PAGE_MASK] -= change;
+            }
+        }
+        markDirty(page, statId);
+    }
+
+    /**
+     * Delta mode: adds {@code delta}, saved by another server, to the stat and to its base, so it isn't saved again.
+     * A stat set here since the last save keeps its value, the local set is newer and overwrites it.
+     * Returns false, changing nothing, while a set of the stat is being saved: whether the set or the change
+     * reached the database first is unknown, the record must be re-read.
+     */
+    public boolean applyRemote(int statId, double delta) {
+        Page page = pageForWrite(statId);
+        int slot = statId & PAGE_MASK;
+        synchronized (syncLock) {
+            if (unsettledAbsolute > 0) return false;
+
+            page.base[slot] += delta;
+            if ((page.assigned.get() & bit(statId)) == 0) {
+                VALUES.getAndAdd(page.values, slot, delta);
+                setBit(page.present, bit(statId));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Delta mode: like {@link #applyRemote}, for the total of {@code period}. A cell still holding an older period
+     * moves on to this one, like {@link #addToPeriod}.
+     */
+    public void applyRemotePeriod(int statId, StatWindow window, int period, double delta) {
+        PeriodCell cell = periodCellForWrite(statId, window);
+        synchronized (syncLock) {
+            synchronized (cell) {
+                if (cell.period > period) return;
+                if (cell.period < period) startPeriod(cell, period, 0);
+                cell.value += delta;
+                cell.base += delta;
+            }
+        }
+    }
+
+    /**
+     * Delta mode: returns a mark to pass to {@link #rebase}, or -1 while a save of this record is in flight,
+     * which a database read can't be matched with.
+     */
+    public long saveMark() {
+        synchronized (syncLock) {
+            return unsettled == 0 ? takes : -1;
+        }
+    }
+
+    /**
+     * Delta mode: replaces the bases with the values of {@code fresh}, a record just read from the database,
+     * keeping the changes not saved yet on top of them. {@code currentPeriods} holds the current period of
+     * every window by ordinal, fresh only has totals of those. Returns false, changing nothing, if a save took
+     * changes since {@code mark} was taken; the values read may then miss them.
+     */
+    public boolean rebase(long mark, PlayerStats fresh, int[] currentPeriods) {
+        synchronized (syncLock) {
+            if (unsettled != 0 || takes != mark) return false;
+
+            Page[] freshPages = fresh.pages;
+            int pageCount = Math.max(pages.length, freshPages.length);
+            for (int p = 0; p < pageCount; p++) {
+                Page freshPage = p < freshPages.length ? freshPages[p] : null;
+                long freshPresent = freshPage != null ? freshPage.present.get() : 0;
+                Page page = p < pages.length ? pages[p] : null;
+                long present = (page != null ? page.present.get() : 0) | freshPresent;
+
+                while (present != 0) {
+                    int slot = Long.numberOfTrailingZeros(present);
+                    present &= present - 1;
+                    int statId = (p << PAGE_SHIFT) | slot;
+                    double stored = (freshPresent & (1L << slot)) != 0 ? (double) VALUES.getVolatile(freshPage.values, slot) : 0.0;
+                    rebaseValue(pageForWrite(statId), statId, stored);
+                }
+            }
+
+            for (PeriodCell freshCell : fresh.periodCells) {
+                periodCellForWrite(freshCell.statId, freshCell.window);
+            }
+            for (PeriodCell cell : periodCells) {
+                int current = currentPeriods[cell.window.ordinal()];
+                PeriodCell freshCell = fresh.periodCell(cell.statId, cell.window);
+                double stored = freshCell != null && freshCell.period == current ? freshCell.value : 0.0;
+                synchronized (cell) {
+                    if (cell.period > current) continue;
+                    if (cell.period < current) {
+                        startPeriod(cell, current, stored);
+                    } else {
+                        cell.value = Math.max(0, stored + cell.value - cell.base);
+                        cell.base = stored;
+                    }
+                }
+            }
+            readStart = fresh.readStart;
+            readEnd = fresh.readEnd;
+            return true;
+        }
+    }
+
+    private void rebaseValue(Page page, int statId, double stored) {
+        int slot = statId & PAGE_MASK;
+        double base = page.base[slot];
+        page.base[slot] = stored;
+        setBit(page.present, bit(statId));
+        // A set not saved yet keeps its value
+        if ((page.assigned.get() & bit(statId)) != 0) return;
+
+        double value;
+        do {
+            value = (double) VALUES.getVolatile(page.values, slot);
+        } while (!VALUES.compareAndSet(page.values, slot, value, stored + value - base));
+    }
+
+    /**
+     * Moves a cell on to a newer period holding {@code stored}, keeping a dirty total of the old one for the next save.
+     * Caller holds the cell's lock.
+     */
+    private void startPeriod(PeriodCell cell, int period, double stored) {
+        if (cell.dirty) {
+            endPeriod(new PeriodValue(cell.statId, cell.window, cell.period, cell.value - cell.base));
+            cell.dirty = false;
+            dirtyCells.decrementAndGet();
+        }
+        cell.period = period;
+        cell.value = stored;
+        cell.base = stored;
+    }
+
+    /**
+     * Marks a stat dirty again, e.g. after a failed save.
+     */
+    public void markDirty(int statId) {
+        Page page = page(statId);
+        if (page != null) markDirty(page, statId);
+    }
+
+    private void markDirty(Page page, int statId) {
+        if (setBit(page.dirty, bit(statId))) dirtyCells.incrementAndGet();
+    }
+
+    private void markAssigned(Page page, int statId) {
+        if (deltas) setBit(page.assigned, bit(statId));
+    }
+
+    private Page page(int statId) {
+        Page[] snapshot = pages;
+        int index = statId >>> PAGE_SHIFT;
+        return index < snapshot.length ? snapshot[index] : null;
+    }
+
+    private Page pageForWrite(int statId) {
+        Page page = page(statId);
+        if (page != null) return page;
+
+        synchronized (this) {
+            int index = statId >>> PAGE_SHIFT;
+            Page[] current = pages;
+            if (index >= current.length) {
+                Page[] grown = new Page[index + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if (current[index] == null) {
+                current[index] = new Page(deltas);
+            }
+            pages = current;
+            return current[index];
+        }
+    }
+
+    private PeriodCell periodCell(int statId, StatWindow window) {
+        for (PeriodCell cell : periodCells) {
+            if (cell.statId == statId && cell.window == window) return cell;
+        }
+        return null;
+    }
+
+    private PeriodCell periodCellForWrite(int statId, StatWindow window) {
+        PeriodCell cell = periodCell(statId, window);
+        if (cell != null) return cell;
+
+        synchronized (this) {
+            cell = periodCell(statId, window);
+            if (cell == null) {
+                PeriodCell[] grown = Arrays.copyOf(periodCells, periodCells.length + 1);
+                cell = new PeriodCell(statId, window);
+                grown[grown.length - 1] = cell;
+                periodCells = grown;
+            }
+            return cell;
+        }
+    }
+
+    private static int cellPeriod(PeriodCell cell) {
+        synchronized (cell) {
+            return cell.period;
+        }
+    }
+
+    private synchronized void endPeriod(PeriodValue value) {
+        if (endedPeriods == null) endedPeriods = new ArrayList<>(1);
+        endedPeriods.add(value);
+    }
+
+    private static long bit(int statId) {
+        return 1L << (statId & PAGE_MASK);
+    }
+
+    /**
+     * Sets the bit and returns true if it wasn't set before.
+     */
+    private static boolean setBit(AtomicLong word, long bit) {
+        if ((word.get() & bit) != 0) return false;
+        return (word.getAndAccumulate(bit, (a, b) -> a | b) & bit) == 0;
+    }
+
+    /**
+     * Clears the bit and returns true if it was set before.
+     */
+    private static boolean clearBit(AtomicLong word, long bit) {
+        if ((word.get() & bit) == 0) return false;
+        return (word.getAndAccumulate(~bit, (a, b) -> a & b) & bit) != 0;
+    }
+
+    private static final class PeriodCell {
+        private final int statId;
+        private final StatWindow window;
+        // Guarded by the cell itself
+        private int period = Integer.MIN_VALUE;
+        private double value;
+        // Delta mode only, see the class comment
+        private double base;
+        private boolean dirty;
+        private boolean ranked;
+
+        private PeriodCell(int statId, StatWindow window) {
+            this.statId = statId;
+            this.window = window;
+        }
+    }
+
+    private static final class Page {
+        private final double[] values = new double[PAGE_SIZE];
+        private final AtomicLong present = new AtomicLong();
+        private final AtomicLong dirty = new AtomicLong();
+        // Stats the leaderboards haven't seen yet
+        private final AtomicLong ranked = new AtomicLong();
+        // Delta mode only: stats set since the last save, and what the database holds plus what saves took
+        private final AtomicLong assigned = new AtomicLong();
+        private final double[] base;
+
+        private Page(boolean deltas) {
+            this.base = deltas ? new double[PAGE_SIZE] : null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Moves data from the old player_stats(uuid TEXT, stat_id, value) layout to the
+ * players + player_stats(player_id, stat_id, value) layout while the server runs.
+ * The old table is renamed to player_stats_legacy at startup and drained in the background, one chunk per
+ * transaction: rows are inserted unless the player already has a newer row, then deleted from the legacy table.
+ * A player loaded before the copy reached them has their rows moved first with {@link #migratePlayers}.
+ * An interrupted migration continues with the rows left on the next startup; the legacy table is dropped once empty.
+ */
+public final class SchemaMigrator {
+
+    private static final String LEGACY_TABLE = "player_stats_legacy";
+    private static final int CHUNK_SIZE = 1_000;
+
+    private final DataSource dataSource;
+    private final Logger logger;
+    private final PlayerIds playerIds;
+    private final String insert;
+    // Moves hold the read lock, dropping the table takes the write lock so no move runs against a missing table
+    private final ReentrantReadWriteLock dropLock = new ReentrantReadWriteLock();
+    // Also set when another server sharing the database dropped it
+    private volatile boolean dropped;
+
+    public SchemaMigrator(DataSource dataSource, SqlDialect dialect, Logger logger) {
+        this.dataSource = dataSource;
+        this.logger = logger;
+        this.playerIds = new PlayerIds(dialect);
+        this.insert = dialect.insertIgnore("player_stats", new String[]{"player_id", "stat_id"}, new String[]{"value"});
+    }
+
+    /**
+     * Renames the old uuid-keyed player_stats table out of the way, so the new one can be created.
+     * Must run before the tables are created.
+     */
+    public void renameLegacyTable(Connection conn) throws SQLException {
+        if (hasColumn(conn, "player_stats", "uuid") && !tableExists(conn, LEGACY_TABLE)) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER TABLE player_stats RENAME TO " + LEGACY_TABLE);
+            }
+            logger.info("Found player_stats in the old uuid layout, migrating it to player ids in the background...");
+        }
+    }
+
+    /**
+     * Whether rows of the old layout are left to migrate.
+     */
+    public boolean hasLegacyTable() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return tableExists(conn, LEGACY_TABLE);
+        }
+    }
+
+    /**
+     * Moves up to CHUNK_SIZE rows of the legacy table in one transaction and returns how many it moved,
+     * 0 once the table is empty.
+     */
+    public int migrateChunk() throws SQLException {
+        dropLock.readLock().lock();
+        try (Connection conn = dataSource.getConnection()) {
+            if (dropped) return 0;
+
+            List<Object[]> chunk = new ArrayList<>(CHUNK_SIZE);
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT uuid, stat_id, value FROM " + LEGACY_TABLE
+                         + " ORDER BY uuid, stat_id LIMIT " + CHUNK_SIZE)) {
+                while (rs.next()) {
+                    chunk.add(new Object[]{rs.getString(1), rs.getInt(2), rs.getDouble(3)});
+                }
+            } catch (SQLException e) {
+                if (droppedElsewhere(conn)) return 0;
+                throw e;
+            }
+            if (chunk.isEmpty()) return 0;
+
+            move(conn, chunk);
+            return chunk.size();
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves every legacy row of the players, so a load right after sees them in the new tables.
+     */
+    public void migratePlayers(Collection<UUID> uuids) throws SQLException {
+        if (uuids.isEmpty()) return;
+
+        dropLock.readLock().lock();
+        try (Connection conn = dataSource.getConnection()) {
+            if (dropped) return;
+
+            List<String> keys = new ArrayList<>(uuids.size());
+            for (UUID uuid : uuids) {
+                keys.add(uuid.toString());
+            }
+            String in = " WHERE uuid IN (" + PlayerIds.placeholders(keys.size()) + ")";
+
+            List<Object[]> rows = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement("SELECT uuid, stat_id, value FROM " + LEGACY_TABLE + in)) {
+                for (int i = 0; i < keys.size(); i++) {
+                    ps.setString(i + 1, keys.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new Object[]{rs.getString(1), rs.getInt(2), rs.getDouble(3)});
+                    }
+                }
+            } catch (SQLException e) {
+                if (droppedElsewhere(conn)) return;
+                throw e;
+            }
+            if (rows.isEmpty()) return;
+
+            move(conn, rows);
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the legacy table if it's empty and returns true, or false if rows were added meanwhile.
+     */
+    public boolean dropIfEmpty() throws SQLException {
+        dropLock.writeLock().lock();
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            if (dropped || droppedElsewhere(conn)) return true;
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM " + LEGACY_TABLE + " LIMIT 1")) {
+                if (rs.next()) return false;
+            }
+            stmt.execute("DROP TABLE " + LEGACY_TABLE);
+            dropped = true;
+            return true;
+        } finally {
+            dropLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts the rows into player_stats unless the player has a row of the stat already, which is newer,
+     * and deletes them from the legacy table, in one transaction.
+     */
+    private void move(Connection conn, List<Object[]> rows) throws SQLException {
+        Map<String, UUID> parsed = new HashMap<>();
+        for (Object[] row : rows) {
+            parsed.computeIfAbsent((String) row[0], SchemaMigrator::parseUuid);
+        }
+        parsed.values().removeIf(Objects::isNull);
+
+        conn.setAutoCommit(false);
+        try {
+            Map<UUID, Integer> ids = playerIds.resolve(conn, new HashSet<>(parsed.values()));
+            try (PreparedStatement ps = conn.prepareStatement(insert);
+                 PreparedStatement del = conn.prepareStatement("DELETE FROM " + LEGACY_TABLE + " WHERE uuid = ? AND stat_id = ?")) {
+                for (Object[] row : rows) {
+                    // Rows with an unparsable uuid are dropped, they could never be loaded
+                    del.setString(1, (String) row[0]);
+                    del.setInt(2, (Integer) row[1]);
+                    del.addBatch();
+
+                    UUID uuid = parsed.get((String) row[0]);
+                    Integer playerId = uuid == null ? null : ids.get(uuid);
+                    if (playerId == null) continue;
+
+                    ps.setInt(1, playerId);
+                    ps.setInt(2, (Integer) row[1]);
+                    ps.setDouble(3, (Double) row[2]);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                del.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Whether another server sharing the database finished the migration and dropped the table.
+     */
+    private boolean droppedElsewhere(Connection conn) {
+        if (tableExists(conn, LEGACY_TABLE)) return false;
+        dropped = true;
+        return true;
+    }
+
+    private static UUID parseUuid(String value) {
+        try {
+            return UUID.fromString(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean tableExists(Connection conn, String table) {
+        return probe(conn, "SELECT 1 FROM " + table + " WHERE 1 = 0");
+    }
+
+    private static boolean hasColumn(Connection conn, String table, String column) {
+        return probe(conn, "SELECT " + column + " FROM " + table + " WHERE 1 = 0");
+    }
+
+    private static boolean probe(Connection conn, String sql) {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeQuery(sql).close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+}
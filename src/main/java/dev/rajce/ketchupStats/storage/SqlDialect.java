@@ -0,0 +1,167 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * The bits of SQL that differ between the supported backends.
+ */
+public enum SqlDialect {
+
+    SQLITE("org.sqlite.JDBC", "INTEGER PRIMARY KEY AUTOINCREMENT", "BLOB", "REAL"),
+    MYSQL("com.mysql.cj.jdbc.Driver", "INT AUTO_INCREMENT PRIMARY KEY", "BINARY(16)", "REAL"),
+    H2("org.h2.Driver", "INT AUTO_INCREMENT PRIMARY KEY", "BINARY(16)", "DOUBLE PRECISION"),
+    POSTGRESQL("org.postgresql.Driver", "SERIAL PRIMARY KEY", "BYTEA", "DOUBLE PRECISION");
+
+    private final String driverClassName;
+    private final String autoIncrementPrimaryKey;
+    private final String uuidType;
+    private final String doubleType;
+
+    SqlDialect(String driverClassName, String autoIncrementPrimaryKey, String uuidType, String doubleType) {
+        this.driverClassName = driverClassName;
+        this.autoIncrementPrimaryKey = autoIncrementPrimaryKey;
+        this.uuidType = uuidType;
+        this.doubleType = doubleType;
+    }
+
+    /**
+     * Picks the dialect of a remote database from its JDBC url, MySQL if it isn't recognised.
+     */
+    public static SqlDialect fromJdbcUrl(String url) {
+        if (url != null) {
+            if (url.startsWith("jdbc:postgresql:")) return POSTGRESQL;
+            if (url.startsWith("jdbc:h2:")) return H2;
+            if (url.startsWith("jdbc:sqlite:")) return SQLITE;
+        }
+        return MYSQL;
+    }
+
+    public String driverClassName() {
+        return driverClassName;
+    }
+
+    public String autoIncrementPrimaryKey() {
+        return autoIncrementPrimaryKey;
+    }
+
+    public String uuidType() {
+        return uuidType;
+    }
+
+    public String doubleType() {
+        return doubleType;
+    }
+
+    /**
+     * Like {@link #autoIncrementPrimaryKey}, for 64-bit ids of tables that see many inserts.
+     */
+    public String autoIncrementBigPrimaryKey() {
+        return switch (this) {
+            case SQLITE -> autoIncrementPrimaryKey;
+            case MYSQL, H2 -> "BIGINT AUTO_INCREMENT PRIMARY KEY";
+            case POSTGRESQL -> "BIGSERIAL PRIMARY KEY";
+        };
+    }
+
+    /**
+     * Builds a single-row insert that does nothing when a row with the same key already exists.
+     */
+    public String insertIgnore(String table, String[] keyColumns, String[] otherColumns) {
+        String[] columns = concat(keyColumns, otherColumns);
+        String columnList = String.join(", ", columns);
+        String placeholders = Arrays.stream(columns).map(c -> "?").collect(Collectors.joining(", "));
+
+        return switch (this) {
+            case SQLITE -> "INSERT OR IGNORE INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")";
+            case MYSQL -> "INSERT IGNORE INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")";
+            case POSTGRESQL -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")"
+                    + " ON CONFLICT(" + String.join(", ", keyColumns) + ") DO NOTHING";
+            case H2 -> "MERGE INTO " + table + " t USING (VALUES (" + placeholders + ")) AS src(" + columnList + ")"
+                    + " ON " + Arrays.stream(keyColumns).map(c -> "t." + c + " = src." + c).collect(Collectors.joining(" AND "))
+                    + " WHEN NOT MATCHED THEN INSERT (" + columnList + ") VALUES ("
+                    + Arrays.stream(columns).map(c -> "src." + c).collect(Collectors.joining(", ")) + ")";
+        };
+    }
+
+    /**
+     * Builds a single-row insert that updates {@code updateColumns} in place when the key already exists.
+     * Unlike REPLACE INTO this never deletes the old row, so the primary key index isn't churned.
+     */
+    public String upsert(String table, String[] keyColumns, String[] updateColumns) {
+        String[] columns = concat(keyColumns, updateColumns);
+
+        String columnList = String.join(", ", columns);
+        String placeholders = Arrays.stream(columns).map(c -> "?").collect(Collectors.joining(", "));
+
+        return switch (this) {
+            case SQLITE, POSTGRESQL -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")"
+                    + " ON CONFLICT(" + String.join(", ", keyColumns) + ") DO UPDATE SET "
+                    + Arrays.stream(updateColumns).map(c -> c + " = excluded." + c).collect(Collectors.joining(", "));
+            case MYSQL -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")"
+                    + " ON DUPLICATE KEY UPDATE "
+                    + Arrays.stream(updateColumns).map(c -> c + " = VALUES(" + c + ")").collect(Collectors.joining(", "));
+            case H2 -> "MERGE INTO " + table + " (" + columnList + ") KEY (" + String.join(", ", keyColumns) + ")"
+                    + " VALUES (" + placeholders + ")";
+        };
+    }
+
+    /**
+     * Builds a single-row insert that adds the new values of {@code addColumns} to the stored ones when the key
+     * already exists, so concurrent writers never overwrite each other's changes.
+     */
+    public String upsertAdding(String table, String[] keyColumns, String[] addColumns) {
+        String[] columns = concat(keyColumns, addColumns);
+
+        String columnList = String.join(", ", columns);
+        String placeholders = Arrays.stream(columns).map(c -> "?").collect(Collectors.joining(", "));
+
+        return switch (this) {
+            case SQLITE, POSTGRESQL -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")"
+                    + " ON CONFLICT(" + String.join(", ", keyColumns) + ") DO UPDATE SET "
+                    + Arrays.stream(addColumns).map(c -> c + " = " + table + "." + c + " + excluded." + c).collect(Collectors.joining(", "));
+            case MYSQL -> "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")"
+                    + " ON DUPLICATE KEY UPDATE "
+                    + Arrays.stream(addColumns).map(c -> c + " = " + c + " + VALUES(" + c + ")").collect(Collectors.joining(", "));
+            case H2 -> "MERGE INTO " + table + " t USING (VALUES (" + placeholders + ")) AS src(" + columnList + ")"
+                    + " ON " + Arrays.stream(keyColumns).map(c -> "t." + c + " = src." + c).collect(Collectors.joining(" AND "))
+                    + " WHEN MATCHED THEN UPDATE SET " + Arrays.stream(addColumns).map(c -> c + " = t." + c + " + src." + c).collect(Collectors.joining(", "))
+                    + " WHEN NOT MATCHED THEN INSERT (" + columnList + ") VALUES ("
+                    + Arrays.stream(columns).map(c -> "src." + c).collect(Collectors.joining(", ")) + ")";
+        };
+    }
+
+    /**
+     * Builds a CREATE INDEX that does nothing if the index exists, or null on MySQL, which has no such statement;
+     * there the index is declared in CREATE TABLE through {@link #inlineIndex} instead.
+     */
+    public String createIndex(String name, String table, String columns) {
+        return this == MYSQL ? null : "CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")";
+    }
+
+    /**
+     * The index definition to append to the column list of a MySQL CREATE TABLE, empty for the other databases.
+     */
+    public String inlineIndex(String name, String columns) {
+        return this == MYSQL ? ", INDEX " + name + " (" + columns + ")" : "";
+    }
+
+    /**
+     * Statement that moves the id sequence of {@code table} past {@code maxId} after rows were inserted with
+     * explicit ids, or null where the database does that by itself (SQLite, MySQL).
+     */
+    public String syncIdSequence(String table, String column, long maxId) {
+        return switch (this) {
+            case SQLITE, MYSQL -> null;
+            case POSTGRESQL -> "SELECT setval(pg_get_serial_sequence('" + table + "', '" + column + "'), "
+                    + Math.max(1, maxId) + ", " + (maxId > 0) + ")";
+            case H2 -> "ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + (maxId + 1);
+        };
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] columns = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, columns, first.length, second.length);
+        return columns;
+    }
+}
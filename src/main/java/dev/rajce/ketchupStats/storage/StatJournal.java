@@ -0,0 +1,116 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local file of stat values that couldn't be saved to the database, e.g. because it was
+ * unreachable at shutdown. Every record holds the absolute value of one cell, so replaying a record twice
+ * is harmless and the last record of a cell wins. Each record carries a CRC32, so a record torn by a crash
+ * ends the replay instead of loading garbage.
+ */
+public final class StatJournal {
+
+    // uuid (16), stat_id (4), value (8), crc (4)
+    private static final int RECORD_SIZE = 32;
+    private static final int BUFFER_RECORDS = 2048;
+
+    private final Path path;
+
+    public StatJournal(Path path) {
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Appends the entries with sequential writes through one direct buffer and forces them to disk.
+     */
+    public void append(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) return;
+        Files.createDirectories(path.getParent());
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS);
+            CRC32 crc = new CRC32();
+
+            for (Entry entry : entries) {
+                if (buffer.remaining() < RECORD_SIZE) drain(buffer, channel);
+
+                int start = buffer.position();
+                buffer.putLong(entry.uuid().getMostSignificantBits())
+                        .putLong(entry.uuid().getLeastSignificantBits())
+                        .putInt(entry.statId())
+                        .putDouble(entry.value());
+                crc.reset();
+                crc.update(buffer.slice(start, RECORD_SIZE - 4));
+                buffer.putInt((int) crc.getValue());
+            }
+            drain(buffer, channel);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Reads the records in the order they were written, stopping at the first torn or corrupt one.
+     */
+    public List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.exists(path)) return entries;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS);
+            CRC32 crc = new CRC32();
+
+            while (channel.read(buffer) > 0 || buffer.position() >= RECORD_SIZE) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    int start = buffer.position();
+                    crc.reset();
+                    crc.update(buffer.slice(start, RECORD_SIZE - 4));
+                    if (buffer.getInt(start + RECORD_SIZE - 4) != (int) crc.getValue()) return entries;
+
+                    UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                    entries.add(new Entry(uuid, buffer.getInt(), buffer.getDouble()));
+                    buffer.getInt();
+                }
+                buffer.compact();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Empties the journal after its records were saved.
+     */
+    public void truncate() throws IOException {
+        if (!Files.exists(path)) return;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public record Entry(UUID uuid, int statId, double value) {
+    }
+}
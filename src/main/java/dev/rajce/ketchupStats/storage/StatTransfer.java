@@ -0,0 +1,315 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams player_stats to and from a CSV file (uuid,stat,value) in keyset-paginated chunks, so memory
+ * stays bounded by one chunk however big the table is. Files ending in .gz are gzip compressed, one gzip
+ * member per chunk. Stats are written by name, so a file can be imported into a database with other stat ids.
+ * Progress is kept in a .progress file next to the data file after every chunk: an interrupted export or
+ * import continues where it stopped when started again, and the progress file is deleted once it finished.
+ */
+public final class StatTransfer {
+
+    private static final int CHUNK_SIZE = 10_000;
+    private static final String HEADER = "uuid,stat,value\n";
+
+    private final DataSource readSource;
+    private final DataSource writeSource;
+    private final SqlDialect dialect;
+    private final Logger logger;
+
+    public StatTransfer(DataSource readSource, DataSource writeSource, SqlDialect dialect, Logger logger) {
+        this.readSource = readSource;
+        this.writeSource = writeSource;
+        this.dialect = dialect;
+        this.logger = logger;
+    }
+
+    /**
+     * Writes every row of player_stats to {@code file}, ordered by (player_id, stat_id).
+     * Continues an interrupted export of the same file.
+     */
+    public Result export(Path file) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Path progressFile = progressFile(file);
+        Properties progress = readProgress(progressFile);
+        boolean resumed = progress != null && Files.exists(file);
+        boolean gzip = isGzip(file);
+
+        int lastPlayerId = resumed ? Integer.parseInt(progress.getProperty("player-id")) : Integer.MIN_VALUE;
+        int lastStatId = resumed ? Integer.parseInt(progress.getProperty("stat-id")) : Integer.MIN_VALUE;
+        long rows = resumed ? Long.parseLong(progress.getProperty("rows")) : 0;
+        long resumedRows = rows;
+
+        String select = "SELECT ps.player_id, ps.stat_id, p.uuid, s.stat_name, ps.value FROM player_stats ps " +
+                "JOIN players p ON p.player_id = ps.player_id JOIN stats s ON s.stat_id = ps.stat_id " +
+                "WHERE (ps.player_id, ps.stat_id) > (?, ?) ORDER BY ps.player_id, ps.stat_id LIMIT " + CHUNK_SIZE;
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             Connection conn = readSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(select)) {
+
+            if (resumed) {
+                // Drop whatever the interrupted run wrote after its last finished chunk
+                channel.truncate(Long.parseLong(progress.getProperty("bytes")));
+                channel.position(channel.size());
+            } else {
+                channel.truncate(0);
+                writeChunk(channel, new StringBuilder(HEADER), gzip);
+            }
+
+            StringBuilder chunk = new StringBuilder(CHUNK_SIZE * 64);
+            while (true) {
+                chunk.setLength(0);
+                int count = 0;
+
+                ps.setInt(1, lastPlayerId);
+                ps.setInt(2, lastStatId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        lastPlayerId = rs.getInt(1);
+                        lastStatId = rs.getInt(2);
+                        chunk.append(UuidBytes.fromBytes(rs.getBytes(3))).append(',');
+                        appendField(chunk, rs.getString(4));
+                        chunk.append(',').append(rs.getDouble(5)).append('\n');
+                        count++;
+                    }
+                }
+                if (count == 0) break;
+
+                writeChunk(channel, chunk, gzip);
+                channel.force(false);
+                rows += count;
+
+                Properties next = new Properties();
+                next.setProperty("player-id", Integer.toString(lastPlayerId));
+                next.setProperty("stat-id", Integer.toString(lastStatId));
+                next.setProperty("rows", Long.toString(rows));
+                next.setProperty("bytes", Long.toString(channel.position()));
+                writeProgress(progressFile, next);
+                if (count < CHUNK_SIZE) break;
+            }
+        }
+
+        Files.deleteIfExists(progressFile);
+        Result result = new Result(rows, 0, rows - resumedRows, (System.nanoTime() - start) / 1_000_000, resumed);
+        logger.info("Exported {} stat rows to {} in {} ms ({} rows/s{}).", rows, file.getFileName(),
+                result.millis(), result.rowsPerSecond(), resumed ? ", resumed" : "");
+        return result;
+    }
+
+    /**
+     * Upserts every row of {@code file} into player_stats, one transaction per chunk. {@code statIds} maps a
+     * stat name to its id, creating the stat if needed, or returns null to skip its rows. {@code committed}
+     * gets every row once its chunk is committed. Continues an interrupted import of the same file.
+     */
+    public Result importFile(Path file, Function<String, Integer> statIds, Consumer<Row> committed) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Path progressFile = progressFile(file);
+        Properties progress = readProgress(progressFile);
+        boolean resumed = progress != null;
+        long done = resumed ? Long.parseLong(progress.getProperty("rows")) : 0;
+        long resumedRows = done;
+        long skipped = resumed ? Long.parseLong(progress.getProperty("skipped", "0")) : 0;
+
+        PlayerIds playerIds = new PlayerIds(dialect);
+        String upsert = dialect.upsert("player_stats", new String[]{"player_id", "stat_id"}, new String[]{"value"});
+        Map<String, Integer> statCache = new HashMap<>();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             BufferedReader reader = reader(channel, isGzip(file))) {
+
+            String header = reader.readLine();
+            if (header == null || !header.startsWith("uuid,")) throw new IOException(file.getFileName() + " is not a stats export");
+
+            // Rows of finished chunks were committed, upserts are idempotent so a half-done chunk is simply redone
+            for (long i = 0; i < done; i++) {
+                if (reader.readLine() == null) break;
+            }
+
+            List<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            do {
+                line = reader.readLine();
+                if (line != null && !line.isEmpty()) {
+                    Row row = parse(line, statCache, statIds);
+                    if (row != null) {
+                        chunk.add(row);
+                    } else {
+                        skipped++;
+                    }
+                    done++;
+                }
+
+                if (chunk.size() >= CHUNK_SIZE || (line == null && !chunk.isEmpty())) {
+                    writeChunk(chunk, playerIds, upsert);
+                    chunk.forEach(committed);
+                    chunk.clear();
+
+                    Properties next = new Properties();
+                    next.setProperty("rows", Long.toString(done));
+                    next.setProperty("skipped", Long.toString(skipped));
+                    writeProgress(progressFile, next);
+                }
+            } while (line != null);
+        }
+
+        Files.deleteIfExists(progressFile);
+        Result result = new Result(done - skipped, skipped, done - resumedRows, (System.nanoTime() - start) / 1_000_000, resumed);
+        logger.info("Imported {} stat rows from {} in {} ms ({} rows/s{}), {} skipped.", result.rows(), file.getFileName(),
+                result.millis(), result.rowsPerSecond(), resumed ? ", resumed" : "", skipped);
+        return result;
+    }
+
+    private void writeChunk(List<Row> chunk, PlayerIds playerIds, String upsert) throws SQLException {
+        Set<UUID> uuids = new HashSet<>();
+        for (Row row : chunk) {
+            uuids.add(row.uuid());
+        }
+
+        // A connection per chunk, so the write-behind flush gets the writer in between
+        try (Connection conn = writeSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(upsert)) {
+                Map<UUID, Integer> ids = playerIds.resolve(conn, uuids);
+                for (Row row : chunk) {
+                    ps.setInt(1, ids.get(row.uuid()));
+                    ps.setInt(2, row.statId());
+                    ps.setDouble(3, row.value());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Parses "uuid,stat,value", the stat possibly quoted. Returns null for a line that can't be imported.
+     */
+    private Row parse(String line, Map<String, Integer> statCache, Function<String, Integer> statIds) {
+        int first = line.indexOf(',');
+        int last = line.lastIndexOf(',');
+        if (first < 0 || last <= first) return null;
+
+        try {
+            UUID uuid = UUID.fromString(line.substring(0, first));
+            double value = Double.parseDouble(line.substring(last + 1));
+            String stat = line.substring(first + 1, last);
+            if (stat.length() >= 2 && stat.charAt(0) == '"') stat = stat.substring(1, stat.length() - 1).replace("\"\"", "\"");
+
+            Integer statId = statCache.computeIfAbsent(stat, statIds);
+            return statId != null ? new Row(uuid, statId, value) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void appendField(StringBuilder out, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            out.append(value);
+        } else {
+            out.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    /**
+     * Appends the text at the channel's position, as its own gzip member when compressing.
+     */
+    private static void writeChunk(FileChannel channel, CharSequence text, boolean gzip) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+        if (!gzip) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return;
+        }
+
+        // Not closed, that would close the channel
+        GZIPOutputStream out = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        out.finish();
+        out.flush();
+    }
+
+    private static BufferedReader reader(FileChannel channel, boolean gzip) throws IOException {
+        InputStream in = Channels.newInputStream(channel);
+        // GZIPInputStream reads every member of a concatenated file
+        if (gzip) in = new GZIPInputStream(in, 1 << 16);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static boolean isGzip(Path file) {
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    private static Path progressFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".progress");
+    }
+
+    private static Properties readProgress(Path progressFile) throws IOException {
+        if (!Files.exists(progressFile)) return null;
+
+        Properties progress = new Properties();
+        try (InputStream in = Files.newInputStream(progressFile)) {
+            progress.load(in);
+        }
+        return progress;
+    }
+
+    /**
+     * Replaces the progress file atomically, so a crash leaves either the old or the new one.
+     */
+    private static void writeProgress(Path progressFile, Properties progress) throws IOException {
+        Path temp = progressFile.resolveSibling(progressFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            progress.store(Channels.newOutputStream(channel), null);
+            channel.force(false);
+        }
+        Files.move(temp, progressFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public record Row(UUID uuid, int statId, double value) {
+    }
+
+    /**
+     * @param rows        rows exported or imported in total, including those of an interrupted earlier run
+     * @param skipped     import rows of unknown stats or that couldn't be parsed
+     * @param transferred rows handled by this run
+     */
+    public record Result(long rows, long skipped, long transferred, long millis, boolean resumed) {
+
+        public long rowsPerSecond() {
+            return transferred * 1000 / Math.max(1, millis);
+        }
+    }
+}
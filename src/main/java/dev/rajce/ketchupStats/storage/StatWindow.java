@@ -0,0 +1,78 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Locale;
+
+/**
+ * A time window a stat can keep totals for. Periods are numbered consecutively from the epoch,
+ * so the previous period is always {@code period - 1}.
+ */
+public enum StatWindow {
+
+    DAILY,
+    // Weeks start on Monday
+    WEEKLY,
+    MONTHLY,
+    // Hours since the epoch, the finest tier of the stat history
+    HOURLY;
+
+    private static final long HOUR_MILLIS = 3_600_000L;
+
+    /**
+     * The number of the period the instant falls in, days, weeks and months as seen in {@code zone}.
+     */
+    public int period(long epochMillis, ZoneId zone) {
+        if (this == HOURLY) return (int) Math.floorDiv(epochMillis, HOUR_MILLIS);
+
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(epochMillis), zone);
+        return switch (this) {
+            case DAILY -> (int) date.toEpochDay();
+            // 1970-01-01 was a Thursday, shift so period 0 starts on Monday 1969-12-29
+            case WEEKLY -> (int) Math.floorDiv(date.toEpochDay() + 3, 7);
+            case MONTHLY -> date.getYear() * 12 + date.getMonthValue() - 1;
+            case HOURLY -> throw new AssertionError();
+        };
+    }
+
+    /**
+     * When the period starts, in epoch milliseconds.
+     */
+    public long start(int period, ZoneId zone) {
+        LocalDate date = switch (this) {
+            case HOURLY -> null;
+            case DAILY -> LocalDate.ofEpochDay(period);
+            case WEEKLY -> LocalDate.ofEpochDay(period * 7L - 3);
+            case MONTHLY -> LocalDate.of(Math.floorDiv(period, 12), Math.floorMod(period, 12) + 1, 1);
+        };
+        return date == null ? period * HOUR_MILLIS : date.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Value stored in the period_type column.
+     */
+    public int id() {
+        return ordinal();
+    }
+
+    public static StatWindow fromId(int id) {
+        return values()[id];
+    }
+
+    /**
+     * Parses "hourly", "daily", "weekly" or "monthly", returns null for anything else.
+     */
+    public static StatWindow fromName(String name) {
+        if (name == null) return null;
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String key() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,128 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.*;
+
+/**
+ * Read-only {@code statName -> (uuid -> value)} view over the player-major stat cache.
+ * Nothing is copied; every lookup and iteration reads the live {@link PlayerStats} records.
+ */
+public final class StatsCacheView extends AbstractMap<String, Map<UUID, Double>> {
+
+    private final Map<String, Integer> statNameToId;
+    private final Map<UUID, PlayerStats> players;
+
+    public StatsCacheView(Map<String, Integer> statNameToId, Map<UUID, PlayerStats> players) {
+        this.statNameToId = statNameToId;
+        this.players = players;
+    }
+
+    @Override
+    public Map<UUID, Double> get(Object key) {
+        Integer statId = statNameToId.get(key);
+        return statId == null ? null : new StatView(statId);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return statNameToId.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return statNameToId.size();
+    }
+
+    @Override
+    public Set<Entry<String, Map<UUID, Double>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Map<UUID, Double>>> iterator() {
+                Iterator<Entry<String, Integer>> it = statNameToId.entrySet().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Map<UUID, Double>> next() {
+                        Entry<String, Integer> entry = it.next();
+                        return new SimpleImmutableEntry<>(entry.getKey(), new StatView(entry.getValue()));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return statNameToId.size();
+            }
+        };
+    }
+
+    /**
+     * All cached values of a single stat, keyed by player.
+     */
+    private final class StatView extends AbstractMap<UUID, Double> {
+
+        private final int statId;
+
+        private StatView(int statId) {
+            this.statId = statId;
+        }
+
+        @Override
+        public Double get(Object key) {
+            PlayerStats stats = players.get(key);
+            return stats != null && stats.has(statId) ? stats.get(statId) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            PlayerStats stats = players.get(key);
+            return stats != null && stats.has(statId);
+        }
+
+        @Override
+        public Set<Entry<UUID, Double>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<UUID, Double>> iterator() {
+                    Iterator<PlayerStats> it = players.values().iterator();
+                    return new Iterator<>() {
+                        private PlayerStats next = advance();
+
+                        private PlayerStats advance() {
+                            while (it.hasNext()) {
+                                PlayerStats stats = it.next();
+                                if (stats.has(statId)) return stats;
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public Entry<UUID, Double> next() {
+                            if (next == null) throw new NoSuchElementException();
+                            PlayerStats current = next;
+                            next = advance();
+                            return new SimpleImmutableEntry<>(current.getUuid(), current.get(statId));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (PlayerStats stats : players.values()) {
+                        if (stats.has(statId)) size++;
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+}
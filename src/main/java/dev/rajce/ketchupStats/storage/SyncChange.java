@@ -0,0 +1,10 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.UUID;
+
+/**
+ * A saved change of one player's stat, as other servers sharing the database learn about it:
+ * with {@code absolute} the stat was set to {@code value}, otherwise {@code value} was added to it.
+ */
+public record SyncChange(UUID uuid, int statId, boolean absolute, double value) {
+}
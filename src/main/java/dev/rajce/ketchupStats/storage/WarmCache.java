@@ -0,0 +1,168 @@
+package dev.rajce.ketchupStats.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Records of players who recently quit, already saved, kept so a quick relog or an offline lookup
+ * doesn't have to go back to the database. Offline lookups also add the records they read, and
+ * since a record holds all of a player's stats, a stat it doesn't have is known to be 0.
+ * Least recently used records are dropped first once the cache is full, and every record is
+ * dropped after the TTL. Records written to after their final save are kept until the flusher saved them.
+ */
+public final class WarmCache {
+
+    private final int maxPlayers;
+    private final long ttlNanos;
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookupHits = new AtomicLong();
+    private final AtomicLong lookupMisses = new AtomicLong();
+
+    /**
+     * @param maxPlayers most records kept, 0 disables the cache
+     */
+    public WarmCache(int maxPlayers, long ttlMillis) {
+        this.maxPlayers = Math.max(0, maxPlayers);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+    }
+
+    public synchronized void put(PlayerStats stats) {
+        if (maxPlayers == 0) return;
+
+        entries.put(stats.getUuid(), new Entry(stats, System.nanoTime()));
+        trim();
+    }
+
+    /**
+     * Adds a record read for an offline lookup, unless an unloaded record, which is never older, is already there.
+     */
+    public synchronized void putIfAbsent(PlayerStats stats) {
+        if (maxPlayers == 0) return;
+
+        entries.putIfAbsent(stats.getUuid(), new Entry(stats, System.nanoTime()));
+        trim();
+    }
+
+    /**
+     * Removes and returns the player's record, or null if there is none or it expired.
+     * A record with unsaved changes never expires, it's newer than the database.
+     */
+    public synchronized PlayerStats take(UUID uuid) {
+        Entry entry = entries.remove(uuid);
+        PlayerStats stats = entry != null && !stale(entry, System.nanoTime()) ? entry.stats : null;
+        (stats != null ? hits : misses).incrementAndGet();
+        return stats;
+    }
+
+    /**
+     * Returns the player's record without removing it, or null if there is none or it expired.
+     */
+    public synchronized PlayerStats peek(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry != null && stale(entry, System.nanoTime())) {
+            entries.remove(uuid);
+            entry = null;
+        }
+        (entry != null ? lookupHits : lookupMisses).incrementAndGet();
+        return entry != null ? entry.stats : null;
+    }
+
+    /**
+     * Like {@link #peek}, without counting it as a lookup.
+     */
+    public synchronized PlayerStats find(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null && !stale(entry, System.nanoTime()) ? entry.stats : null;
+    }
+
+    /**
+     * Returns the player's record even if it expired, for the flusher to save changes made after the unload.
+     */
+    public synchronized PlayerStats findUnsaved(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null ? entry.stats : null;
+    }
+
+    /**
+     * Drops expired records and returns how many were dropped. Records with unsaved changes stay until the
+     * flusher saved them.
+     */
+    public synchronized int expire() {
+        long now = System.nanoTime();
+        int removed = 0;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (stale(entry, now)) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void forEach(Consumer<PlayerStats> action) {
+        for (Entry entry : entries.values()) {
+            action.accept(entry.stats);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads that found the player here.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Offline lookups that found the player here.
+     */
+    public long getLookupHits() {
+        return lookupHits.get();
+    }
+
+    public long getLookupMisses() {
+        return lookupMisses.get();
+    }
+
+    private void trim() {
+        if (entries.size() <= maxPlayers) return;
+
+        // Eldest record without unsaved changes, the flusher still needs the others
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (!it.next().stats.hasDirty()) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Expired and without unsaved changes, so the database has everything the record has.
+     */
+    private boolean stale(Entry entry, long now) {
+        return now - entry.unloadedAt >= ttlNanos && !entry.stats.hasDirty();
+    }
+
+    private record Entry(PlayerStats stats, long unloadedAt) {
+    }
+}
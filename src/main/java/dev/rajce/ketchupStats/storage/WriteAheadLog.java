@@ -0,0 +1,318 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Local log of every stat change since the last save, so a crash loses at most what the OS hadn't
+ * written out yet instead of everything since the last save.
+ * Records go to memory-mapped segment files: an append reserves a slot with one atomic add and writes
+ * into the mapping, no system call. Every record holds the cell's value read after its slot was reserved,
+ * so the last record of a cell always has its latest value and replay is a plain "last record wins".
+ * {@link #mark()} starts a new segment before a save; once that save succeeded {@link #checkpoint} recycles
+ * the older segments. A clean shutdown deletes the segments, so any left at startup mean a crash.
+ */
+public final class WriteAheadLog {
+
+    public static final byte SET = 1;
+    public static final byte ADD = 2;
+    public static final byte COMPARE_AND_SET = 3;
+    public static final byte MERGE = 4;
+
+    private static final int MAGIC = 0x4B53574C; // "KSWL"
+    private static final int HEADER_SIZE = 32;
+    // uuid (16), value (8), stat_id and op (4), check (4)
+    private static final int RECORD_SIZE = 32;
+    // Added to a segment's position when it is sealed, so every later reservation fails
+    private static final int SEALED = 1 << 30;
+    private static final int SPARE_SEGMENTS = 2;
+    private static final String SUFFIX = ".wal";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Logger logger;
+
+    private volatile Segment current;
+    private final Deque<Segment> sealed = new ArrayDeque<>();
+    private final Deque<Segment> spares = new ArrayDeque<>();
+    private long nextSequence = 1;
+
+    private final Thread syncThread;
+    private final long syncIntervalNanos;
+    private volatile boolean running = true;
+
+    /**
+     * Starts a new log in {@code directory}, which must not hold segments of an earlier run
+     * (read them with {@link #recover} first).
+     *
+     * @param segmentBytes       size of one segment file
+     * @param syncIntervalMillis how often the current segment is forced to disk, 0 to leave it to the OS
+     */
+    public WriteAheadLog(Path directory, int segmentBytes, long syncIntervalMillis, Logger logger) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_SIZE + RECORD_SIZE, segmentBytes / RECORD_SIZE * RECORD_SIZE);
+        this.logger = logger;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+
+        Files.createDirectories(directory);
+        this.current = newSegment();
+
+        this.syncThread = new Thread(this::syncLoop, "KetchupStats-WAL");
+        this.syncThread.setDaemon(true);
+        if (syncIntervalNanos > 0) syncThread.start();
+    }
+
+    /**
+     * Logs the current value of a cell after {@code op} changed it. Lock-free and allocation-free
+     * except when the segment is full. Can be called from any thread.
+     */
+    public void append(PlayerStats stats, int statId, byte op) {
+        while (true) {
+            Segment segment = current;
+            if (segment == Segment.DISABLED) return;
+
+            int offset = segment.position.getAndAdd(RECORD_SIZE);
+            if (offset <= segmentSize - RECORD_SIZE) {
+                // Read after reserving: a later change to this cell reserves a later slot
+                segment.write(offset, stats.getUuid(), statId, op, stats.get(statId));
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Seals the current segment and returns the sequence of the new one. Every change logged before
+     * this call is in an older segment, so after a save that started after it they can be dropped.
+     */
+    public synchronized long mark() {
+        if (current != Segment.DISABLED && current.position.get() > HEADER_SIZE) roll(current);
+        return current.sequence;
+    }
+
+    /**
+     * Recycles the segments older than {@code mark} after everything changed before it was saved.
+     */
+    public synchronized void checkpoint(long mark) {
+        Iterator<Segment> it = sealed.iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment.sequence >= mark) break;
+            it.remove();
+
+            // A writer that reserved a slot before the seal may not have written it yet, keep its mapping away from new records
+            if (segment.isQuiescent() && spares.size() < SPARE_SEGMENTS) {
+                // Already saved, recovery must not replay it
+                segment.buffer.putInt(0, 0);
+                spares.add(segment);
+            } else {
+                delete(segment);
+            }
+        }
+    }
+
+    /**
+     * Stops the sync thread. With {@code delete} the segments are removed, which marks the shutdown as clean;
+     * otherwise they're forced to disk and replayed on the next start.
+     */
+    public synchronized void close(boolean delete) {
+        running = false;
+        LockSupport.unpark(syncThread);
+
+        List<Segment> all = new ArrayList<>(sealed);
+        all.add(current);
+        all.addAll(spares);
+        for (Segment segment : all) {
+            if (delete || spares.contains(segment)) {
+                delete(segment);
+            } else if (segment.buffer != null) {
+                segment.buffer.force();
+            }
+        }
+        sealed.clear();
+        spares.clear();
+    }
+
+    /**
+     * Reads the records of segments a crashed run left in {@code directory}, oldest first,
+     * skipping slots that were never written or hold records of an earlier use of the file.
+     */
+    public static List<StatJournal.Entry> recover(Path directory) throws IOException {
+        List<StatJournal.Entry> entries = new ArrayList<>();
+        TreeMap<Long, ByteBuffer> segments = new TreeMap<>();
+
+        for (Path path : segmentFiles(directory)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.limit() >= HEADER_SIZE && buffer.getInt(0) == MAGIC) {
+                    segments.put(buffer.getLong(4), buffer);
+                }
+            }
+        }
+
+        for (var segment : segments.entrySet()) {
+            long sequence = segment.getKey();
+            ByteBuffer buffer = segment.getValue();
+            for (int offset = HEADER_SIZE; offset <= buffer.limit() - RECORD_SIZE; offset += RECORD_SIZE) {
+                long most = buffer.getLong(offset);
+                long least = buffer.getLong(offset + 8);
+                long bits = buffer.getLong(offset + 16);
+                int statAndOp = buffer.getInt(offset + 24);
+                if (statAndOp == 0 || buffer.getInt(offset + 28) != check(most, least, bits, statAndOp, sequence)) continue;
+
+                entries.add(new StatJournal.Entry(new UUID(most, least), statAndOp & 0xFFFFFF, Double.longBitsToDouble(bits)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes the segments a crashed run left in {@code directory}, after {@link #recover} saved their records elsewhere.
+     */
+    public static void deleteSegments(Path directory) throws IOException {
+        for (Path path : segmentFiles(directory)) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private synchronized void roll(Segment full) {
+        if (current != full) return;
+
+        int end = full.position.getAndAdd(SEALED);
+        full.validBytes = Math.min(end, segmentSize) - HEADER_SIZE;
+        sealed.add(full);
+
+        try {
+            current = spares.isEmpty() ? newSegment() : spares.poll().reuse(nextSequence++);
+        } catch (IOException e) {
+            // Stop logging instead of failing the stat write, the write-behind flush still saves the change
+            logger.error("Could not create a new write-ahead log segment, changes are only saved by the next flush", e);
+            current = Segment.DISABLED;
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        long sequence = nextSequence++;
+        Path path = directory.resolve(String.format("%016d%s", sequence, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(path, buffer, sequence);
+        }
+    }
+
+    private void syncLoop() {
+        while (running) {
+            LockSupport.parkNanos(syncIntervalNanos);
+            if (!running) break;
+
+            Segment segment = current;
+            if (segment.buffer == null) continue;
+            try {
+                segment.buffer.force();
+            } catch (Exception e) {
+                logger.warn("Could not force the write-ahead log to disk", e);
+            }
+        }
+    }
+
+    private void delete(Segment segment) {
+        if (segment.path == null) return;
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Could not delete write-ahead log segment {}", segment.path, e);
+        }
+    }
+
+    private static List<Path> segmentFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return files;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Mixes the record with the segment's sequence, so stale records of a recycled file don't pass.
+     */
+    private static int check(long most, long least, long bits, int statAndOp, long sequence) {
+        long h = most * 0x9E3779B97F4A7C15L;
+        h = (h ^ least) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ bits) * 0x94D049BB133111EBL;
+        h = (h ^ statAndOp ^ (sequence << 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Segment {
+
+        // Used after a segment couldn't be created, appends return without logging
+        static final Segment DISABLED = new Segment(null, null, 0);
+
+        final Path path;
+        final MappedByteBuffer buffer;
+        final long sequence;
+        final AtomicInteger position;
+        final LongAdder written = new LongAdder();
+        volatile int validBytes;
+
+        Segment(Path path, MappedByteBuffer buffer, long sequence) {
+            this.path = path;
+            this.buffer = buffer;
+            this.sequence = sequence;
+            this.position = new AtomicInteger(buffer != null ? HEADER_SIZE : SEALED);
+            if (buffer != null) {
+                buffer.putInt(0, MAGIC);
+                buffer.putLong(4, sequence);
+            }
+        }
+
+        void write(int offset, UUID uuid, int statId, byte op, double value) {
+            long most = uuid.getMostSignificantBits();
+            long least = uuid.getLeastSignificantBits();
+            long bits = Double.doubleToRawLongBits(value);
+            int statAndOp = (op << 24) | (statId & 0xFFFFFF);
+
+            buffer.putLong(offset, most);
+            buffer.putLong(offset + 8, least);
+            buffer.putLong(offset + 16, bits);
+            buffer.putInt(offset + 24, statAndOp);
+            buffer.putInt(offset + 28, check(most, least, bits, statAndOp, sequence));
+            written.add(RECORD_SIZE);
+        }
+
+        boolean isQuiescent() {
+            return written.sum() == validBytes;
+        }
+
+        /**
+         * The same file and mapping under a new sequence. Old records stay in place but fail the check.
+         */
+        Segment reuse(long newSequence) throws IOException {
+            Path renamed = path.resolveSibling(String.format("%016d%s", newSequence, SUFFIX));
+            Files.move(path, renamed);
+            return new Segment(renamed, buffer, newSequence);
+        }
+    }
+}
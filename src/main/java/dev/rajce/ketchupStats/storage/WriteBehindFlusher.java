@@ -0,0 +1,97 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated thread that saves dirty stats when enough cells are waiting or the oldest change gets too old.
+ * Repeated writes to one cell only set its dirty bit again, so the backlog can never be larger than
+ * players * stats however slow the database is. A slow flush stretches the gap before the next
+ * threshold-triggered one, so more writes get coalesced instead of hammering a struggling database.
+ */
+public final class WriteBehindFlusher {
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Runnable flush;
+    private final AtomicInteger dirtyCells;
+    private final Logger logger;
+    private final int flushThreshold;
+    private final long maxAgeNanos;
+    private final long minIntervalNanos;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param flushThreshold number of dirty cells that triggers a flush
+     * @param maxAgeMillis   longest time a change may wait before it gets saved
+     * @param minIntervalMillis shortest gap between two threshold-triggered flushes
+     */
+    public WriteBehindFlusher(Runnable flush, AtomicInteger dirtyCells, Logger logger,
+                              int flushThreshold, long maxAgeMillis, long minIntervalMillis) {
+        this.flush = flush;
+        this.dirtyCells = dirtyCells;
+        this.logger = logger;
+        this.flushThreshold = Math.max(1, flushThreshold);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxAgeMillis));
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minIntervalMillis));
+
+        this.thread = new Thread(this::run, "KetchupStats-Flusher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the thread, waiting for a flush that is already running to finish.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long lastFlush = System.nanoTime();
+        long gap = minIntervalNanos;
+        long firstDirty = 0;
+
+        while (running) {
+            LockSupport.parkNanos(POLL_NANOS);
+            if (!running) break;
+
+            long now = System.nanoTime();
+            int pending = dirtyCells.get();
+            if (pending <= 0) {
+                firstDirty = 0;
+                continue;
+            }
+            if (firstDirty == 0) firstDirty = now;
+
+            boolean full = pending >= flushThreshold && now - lastFlush >= gap;
+            boolean stale = now - firstDirty >= maxAgeNanos;
+            if (!full && !stale) continue;
+
+            try {
+                flush.run();
+            } catch (Exception e) {
+                logger.error("Write-behind flush failed", e);
+            }
+
+            long took = System.nanoTime() - now;
+            lastFlush = System.nanoTime();
+            gap = Math.min(maxAgeNanos, Math.max(minIntervalNanos, took * 2));
+            firstDirty = dirtyCells.get() > 0 ? lastFlush : 0;
+        }
+    }
+}
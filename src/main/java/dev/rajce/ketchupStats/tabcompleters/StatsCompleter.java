@@ -47,6 +47,9 @@ public class StatsCompleter implements TabCompleter {
             if (hasPermission(player, "set")) list.add("set");
             if (hasPermission(player, "get")) list.add("get");
             if (hasPermission(player, "reload")) list.add("reload");
+            if (hasPermission(player, "export")) list.add("export");
+            if (hasPermission(player, "import")) list.add("import");
+            if (hasPermission(player, "migrate")) list.add("migrate");
 
             return list;
         }
@@ -69,6 +72,21 @@ public class StatsCompleter implements TabCompleter {
                     if (hasPermission(player, args[0].toLowerCase()))
                         return playerNames;
                 }
+
+                case "export" -> {
+                    if (hasPermission(player, "export"))
+                        return List.of("stats.csv", "stats.csv.gz");
+                }
+
+                case "import" -> {
+                    if (hasPermission(player, "import"))
+                        return databaseManager.getExportFiles();
+                }
+
+                case "migrate" -> {
+                    if (hasPermission(player, "migrate"))
+                        return List.of("cancel");
+                }
             }
         }
 
@@ -0,0 +1,54 @@
+package dev.rajce.ketchupStats;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Placeholders are requested for every player on every scoreboard refresh, so the common values must come from the
+ * string table instead of being built per call.
+ */
+class StatFormatterTest {
+
+    private static final int CALLS = 1_000_000;
+
+    @Test
+    void smallNumbersAndRanksShareStrings() {
+        StatFormatter formatter = new StatFormatter(StatFormatter.Style.NUMBER, 2);
+
+        assertEquals("150", formatter.format(150));
+        assertSame(formatter.format(150), StatFormatter.integer(150));
+        assertSame(StatFormatter.integer(9_999), StatFormatter.integer(9_999));
+        assertEquals("10000", StatFormatter.integer(10_000));
+        assertEquals("1.5", formatter.format(1.5));
+    }
+
+    @Test
+    void formattingCachedValuesDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        StatFormatter formatter = new StatFormatter(StatFormatter.Style.NUMBER, 2);
+
+        // Warm up first, the interpreter and the first compilations allocate on their own
+        int length = run(formatter);
+        long before = threads.getThreadAllocatedBytes(thread);
+        length += run(formatter);
+        double perCall = (threads.getThreadAllocatedBytes(thread) - before) / (double) CALLS;
+
+        assertTrue(length > 0);
+        assertTrue(perCall < 1, perCall + " bytes allocated per call");
+    }
+
+    private static int run(StatFormatter formatter) {
+        int length = 0;
+        for (int i = 0; i < CALLS; i++) {
+            length += formatter.format(i % 5_000).length();
+            length += StatFormatter.integer(i % 9_000 + 1).length();
+        }
+        return length;
+    }
+}
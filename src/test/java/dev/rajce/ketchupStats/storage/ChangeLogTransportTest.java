@@ -0,0 +1,242 @@
+package dev.rajce.ketchupStats.storage;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two servers sharing one SQLite file, each saving deltas the way DatabaseManager does: the value and the change
+ * log row in one transaction. Every server has to end up with the merged totals, and see the other's changes
+ * within one poll.
+ */
+class ChangeLogTransportTest {
+
+    private static final int STAT_ID = 1;
+    private static final int PLAYERS = 20;
+    private static final int WRITERS = 4;
+    private static final int WRITES = 500;
+    private static final long POLL_MILLIS = 100;
+    // A committed change is read by the next poll; the rest is slack for a busy machine
+    private static final long STALENESS_MILLIS = POLL_MILLIS + 1000;
+
+    @TempDir
+    Path dir;
+
+    private final UUID[] players = new UUID[PLAYERS];
+    private final AtomicLongArray expected = new AtomicLongArray(PLAYERS);
+    private Server a;
+    private Server b;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("shared.db").toAbsolutePath();
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = new UUID(7, i);
+        }
+        a = new Server("a", url);
+        b = new Server("b", url);
+        a.start();
+        b.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (a != null) a.close();
+        if (b != null) b.close();
+    }
+
+    @Test
+    void concurrentDeltasOnBothServersMerge() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (Server server : List.of(a, b)) {
+            for (int t = 0; t < WRITERS; t++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < WRITES; i++) {
+                            int player = ThreadLocalRandom.current().nextInt(PLAYERS);
+                            server.add(players[player], 1);
+                            expected.incrementAndGet(player);
+                        }
+                    } catch (InterruptedException | SQLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+            }
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The last writes are read by the next poll of the other server
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STALENESS_MILLIS);
+        while (System.nanoTime() < deadline && !(a.sees(players, expected) && b.sees(players, expected))) {
+            Thread.sleep(10);
+        }
+
+        Map<UUID, Double> stored = a.readTotals();
+        long total = 0;
+        for (int i = 0; i < PLAYERS; i++) {
+            double want = expected.get(i);
+            total += expected.get(i);
+            double storedTotal = stored.getOrDefault(players[i], 0.0);
+            assertEquals(want, storedTotal, "stored total of player " + i);
+            assertEquals(want, a.total(players[i]), "server a's total of player " + i);
+            assertEquals(want, b.total(players[i]), "server b's total of player " + i);
+        }
+        assertEquals(2L * WRITERS * WRITES, total);
+    }
+
+    @Test
+    void changesArriveWithinOnePoll() throws Exception {
+        UUID probe = new UUID(8, 0);
+        for (int i = 1; i <= 20; i++) {
+            Server from = i % 2 == 0 ? a : b;
+            Server to = from == a ? b : a;
+
+            long saved = System.nanoTime();
+            from.add(probe, 1);
+            while (to.total(probe) < i && System.nanoTime() - saved < TimeUnit.MILLISECONDS.toNanos(STALENESS_MILLIS * 2)) {
+                Thread.sleep(1);
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - saved);
+
+            assertEquals((double) i, to.total(probe), "change " + i + " never arrived");
+            assertTrue(millis <= STALENESS_MILLIS, "change " + i + " took " + millis + " ms, allowed " + STALENESS_MILLIS);
+        }
+    }
+
+    /**
+     * One server: a write pool and a read pool on the shared file, the transport and the totals it has cached.
+     */
+    private static final class Server implements SyncTransport.Receiver {
+
+        private final HikariDataSource writer;
+        private final HikariDataSource reader;
+        private final ChangeLogTransport transport;
+        private final String upsert;
+        private final Map<UUID, DoubleAdder> totals = new ConcurrentHashMap<>();
+        private final CountDownLatch primed = new CountDownLatch(1);
+
+        Server(String name, String url) throws SQLException {
+            writer = pool(url, "writer-" + name, 1);
+            reader = pool(url, "reader-" + name, 2);
+            SqlDialect dialect = SqlDialect.fromJdbcUrl(url);
+            try (Connection conn = writer.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS totals (uuid BLOB PRIMARY KEY, value REAL NOT NULL)");
+            }
+            upsert = dialect.upsertAdding("totals", new String[]{"uuid"}, new String[]{"value"});
+            transport = new ChangeLogTransport(reader, writer, dialect, name, POLL_MILLIS, 60_000,
+                    LoggerFactory.getLogger(ChangeLogTransportTest.class));
+        }
+
+        void start() throws InterruptedException {
+            transport.start(this);
+            // Changes committed before the transport found the end of the log would never be delivered
+            assertTrue(primed.await(10, TimeUnit.SECONDS), "the transport never started reading");
+        }
+
+        /**
+         * Saves a delta together with its change log row, then applies it to the cached total.
+         */
+        void add(UUID uuid, double delta) throws SQLException {
+            try (Connection conn = writer.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement ps = conn.prepareStatement(upsert)) {
+                    ps.setBytes(1, UuidBytes.toBytes(uuid));
+                    ps.setDouble(2, delta);
+                    ps.executeUpdate();
+                    transport.publish(conn, List.of(new SyncChange(uuid, STAT_ID, false, delta)));
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            totals.computeIfAbsent(uuid, key -> new DoubleAdder()).add(delta);
+        }
+
+        double total(UUID uuid) {
+            DoubleAdder total = totals.get(uuid);
+            return total != null ? total.sum() : 0.0;
+        }
+
+        boolean sees(UUID[] players, AtomicLongArray expected) {
+            for (int i = 0; i < players.length; i++) {
+                if (total(players[i]) != expected.get(i)) return false;
+            }
+            return true;
+        }
+
+        Map<UUID, Double> readTotals() throws SQLException {
+            Map<UUID, Double> stored = new HashMap<>();
+            try (Connection conn = reader.getConnection();
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT uuid, value FROM totals")) {
+                while (rs.next()) {
+                    stored.put(UuidBytes.fromBytes(rs.getBytes(1)), rs.getDouble(2));
+                }
+            }
+            return stored;
+        }
+
+        @Override
+        public void receive(List<SyncChange> changes, long visibleAfter, long visibleBefore) {
+            for (SyncChange change : changes) {
+                totals.computeIfAbsent(change.uuid(), key -> new DoubleAdder()).add(change.value());
+            }
+        }
+
+        @Override
+        public void resync() {
+            primed.countDown();
+        }
+
+        void close() {
+            transport.close();
+            writer.close();
+            reader.close();
+        }
+
+        private static HikariDataSource pool(String url, String name, int size) {
+            HikariConfig config = new HikariConfig();
+            config.setJdbcUrl(url);
+            config.setDriverClassName(SqlDialect.SQLITE.driverClassName());
+            config.setMaximumPoolSize(size);
+            config.setPoolName(name);
+            config.addDataSourceProperty("journal_mode", "WAL");
+            config.addDataSourceProperty("busy_timeout", "30000");
+            return new HikariDataSource(config);
+        }
+    }
+}
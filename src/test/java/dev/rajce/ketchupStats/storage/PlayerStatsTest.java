@@ -0,0 +1,123 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Hammers one record from many threads at once; every write has to show up in the final value.
+ */
+class PlayerStatsTest {
+
+    private static final int THREADS = 16;
+    private static final int WRITES = 50_000;
+
+    private final AtomicInteger dirtyCells = new AtomicInteger();
+    private final PlayerStats stats = new PlayerStats(new UUID(0, 1), dirtyCells);
+
+    @Test
+    void concurrentGetAndAddLosesNoUpdates() throws InterruptedException {
+        // 3 is on the first page, 200 on a page the threads create while racing each other
+        hammer(thread -> {
+            for (int i = 0; i < WRITES; i++) {
+                stats.getAndAdd(3, 1, 0);
+                stats.getAndAdd(200, 2, 0);
+            }
+        });
+
+        assertEquals((double) THREADS * WRITES, stats.get(3));
+        assertEquals(2.0 * THREADS * WRITES, stats.get(200));
+    }
+
+    @Test
+    void concurrentNegativeDeltasLoseNoUpdates() throws InterruptedException {
+        stats.load(5, 1_000_000);
+        // Half the threads add 3, half take 1: the CAS loop of negative deltas races the plain getAndAdd
+        hammer(thread -> {
+            double delta = thread % 2 == 0 ? 3 : -1;
+            for (int i = 0; i < WRITES; i++) {
+                stats.getAndAdd(5, delta, 0);
+            }
+        });
+
+        assertEquals(1_000_000 + (THREADS / 2) * WRITES * 3.0 - (THREADS / 2) * WRITES, stats.get(5));
+    }
+
+    @Test
+    void compareAndSetIncrementsLoseNoUpdates() throws InterruptedException {
+        hammer(thread -> {
+            for (int i = 0; i < WRITES; i++) {
+                double value;
+                do {
+                    value = stats.get(7);
+                } while (!stats.compareAndSet(7, value, value + 1));
+            }
+        });
+
+        assertEquals((double) THREADS * WRITES, stats.get(7));
+    }
+
+    @Test
+    void floorHoldsUnderConcurrentDecrements() throws InterruptedException {
+        stats.load(9, 1000);
+        hammer(thread -> {
+            for (int i = 0; i < WRITES; i++) {
+                stats.getAndAdd(9, -1, 0);
+            }
+        });
+
+        assertEquals(0.0, stats.get(9));
+    }
+
+    @Test
+    void concurrentWritesLeaveEachCellDirtyOnce() throws InterruptedException {
+        hammer(thread -> {
+            for (int i = 0; i < WRITES; i++) {
+                stats.getAndAdd(i % 4, 1, 0);
+                stats.getAndAdd(64 + i % 4, 1, 0);
+            }
+        });
+
+        assertEquals(8, dirtyCells.get());
+        assertArrayEquals(new int[]{0, 1, 2, 3, 64, 65, 66, 67}, stats.drainDirty());
+        assertEquals(0, dirtyCells.get());
+        assertFalse(stats.hasDirty());
+    }
+
+    /**
+     * Runs {@code work} on THREADS threads released together, and waits for all of them.
+     */
+    private static void hammer(ThreadWork work) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                work.run(thread);
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThreadWork {
+        void run(int thread);
+    }
+}
@@ -0,0 +1,140 @@
+package dev.rajce.ketchupStats.storage;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A database in the old uuid layout, drained chunk by chunk the way DatabaseManager's migration thread does,
+ * with players moved on their own in between.
+ */
+class SchemaMigratorTest {
+
+    private static final int PLAYERS = 1_500;
+
+    @TempDir
+    Path dir;
+
+    private HikariDataSource dataSource;
+    private SchemaMigrator migrator;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:sqlite:" + dir.resolve("stats.db").toAbsolutePath());
+        config.setDriverClassName(SqlDialect.SQLITE.driverClassName());
+        config.setMaximumPoolSize(1);
+        dataSource = new HikariDataSource(config);
+        migrator = new SchemaMigrator(dataSource, SqlDialect.SQLITE, LoggerFactory.getLogger(SchemaMigratorTest.class));
+
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE player_stats (uuid TEXT NOT NULL, stat_id INTEGER NOT NULL, value REAL NOT NULL, PRIMARY KEY(uuid, stat_id))");
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO player_stats VALUES (?, ?, ?)")) {
+                for (int i = 0; i < PLAYERS; i++) {
+                    for (int statId = 1; statId <= 2; statId++) {
+                        ps.setString(1, player(i).toString());
+                        ps.setInt(2, statId);
+                        ps.setDouble(3, i);
+                        ps.addBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            stmt.execute("INSERT INTO player_stats VALUES ('not-a-uuid', 1, 1)");
+            conn.commit();
+            conn.setAutoCommit(true);
+
+            migrator.renameLegacyTable(conn);
+            stmt.execute("CREATE TABLE players (player_id INTEGER PRIMARY KEY AUTOINCREMENT, uuid BLOB UNIQUE NOT NULL)");
+            stmt.execute("CREATE TABLE player_stats (player_id INTEGER NOT NULL, stat_id INTEGER NOT NULL, value REAL NOT NULL, PRIMARY KEY(player_id, stat_id))");
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (dataSource != null) dataSource.close();
+    }
+
+    @Test
+    void drainsLegacyTableAndDropsIt() throws SQLException {
+        assertTrue(migrator.hasLegacyTable());
+
+        long moved = 0;
+        int rows;
+        while ((rows = migrator.migrateChunk()) > 0) {
+            moved += rows;
+        }
+        assertTrue(migrator.dropIfEmpty());
+
+        assertEquals(2L * PLAYERS + 1, moved);
+        assertFalse(migrator.hasLegacyTable());
+        assertEquals((double) 2 * PLAYERS, count("SELECT COUNT(*) FROM player_stats"));
+        assertEquals((double) PLAYERS, count("SELECT COUNT(*) FROM players"));
+        assertEquals(2.0 * PLAYERS * (PLAYERS - 1) / 2, count("SELECT SUM(value) FROM player_stats"));
+    }
+
+    @Test
+    void movedPlayerKeepsNewerValues() throws SQLException {
+        UUID moved = player(PLAYERS - 1);
+        migrator.migratePlayers(List.of(moved));
+        assertEquals(2.0, count("SELECT COUNT(*) FROM player_stats"));
+        assertEquals(0.0, count("SELECT COUNT(*) FROM player_stats_legacy WHERE uuid = '" + moved + "'"));
+
+        // A save after the player was loaded, the drain must not put the legacy value back
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("UPDATE player_stats SET value = 12345 WHERE stat_id = 1");
+        }
+        while (migrator.migrateChunk() > 0) {
+            // drain
+        }
+        assertTrue(migrator.dropIfEmpty());
+
+        assertEquals(12345.0, count("SELECT ps.value FROM player_stats ps JOIN players p ON p.player_id = ps.player_id "
+                + "WHERE ps.stat_id = 1 AND p.uuid = X'" + hex(moved) + "'"));
+        assertEquals((double) 2 * PLAYERS, count("SELECT COUNT(*) FROM player_stats"));
+
+        // Loads after the drop find nothing left to move
+        migrator.migratePlayers(List.of(player(0)));
+    }
+
+    private double count(String sql) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getDouble(1);
+        }
+    }
+
+    private static UUID player(int i) {
+        return new UUID(31L * i + 7, i);
+    }
+
+    private static String hex(UUID uuid) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : UuidBytes.toBytes(uuid)) {
+            hex.append(String.format("%02X", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package dev.rajce.ketchupStats.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records written to after they moved to the warm cache are newer than the database, the TTL must not drop them.
+ */
+class WarmCacheTest {
+
+    private static final long TTL_MILLIS = 20;
+
+    private final AtomicInteger dirtyCells = new AtomicInteger();
+    private final WarmCache cache = new WarmCache(10, TTL_MILLIS);
+
+    @Test
+    void relogAfterTtlGetsRecordWithUnsavedChanges() throws InterruptedException {
+        UUID uuid = new UUID(0, 1);
+        PlayerStats stats = new PlayerStats(uuid, dirtyCells);
+        stats.load(3, 10);
+        cache.put(stats);
+
+        // A write that raced the unload lands on the warm record
+        stats.getAndAdd(3, 5, 0);
+        Thread.sleep(TTL_MILLIS * 3);
+
+        assertEquals(0, cache.expire());
+        PlayerStats relogged = cache.take(uuid);
+        assertEquals(stats, relogged);
+        assertEquals(15.0, relogged.get(3));
+        assertTrue(relogged.hasDirty());
+        assertEquals(1, dirtyCells.get());
+    }
+
+    @Test
+    void savedRecordsExpire() throws InterruptedException {
+        UUID uuid = new UUID(0, 2);
+        PlayerStats stats = new PlayerStats(uuid, dirtyCells);
+        stats.load(3, 10);
+        cache.put(stats);
+        Thread.sleep(TTL_MILLIS * 3);
+
+        assertNull(cache.take(uuid));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void fullCacheKeepsUnsavedRecords() {
+        WarmCache small = new WarmCache(1, 60_000);
+        PlayerStats dirty = new PlayerStats(new UUID(0, 3), dirtyCells);
+        dirty.getAndAdd(1, 1, 0);
+        small.put(dirty);
+        small.put(new PlayerStats(new UUID(0, 4), dirtyCells));
+
+        assertEquals(dirty, small.find(dirty.getUuid()));
+        assertNull(small.find(new UUID(0, 4)));
+    }
+}